@@ -111,6 +111,12 @@ public class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
     return parenthesize("stmt", stmt.expression);
   }
 
+  @Override
+  public String visitForStmt(Stmt.For stmt) {
+    return parenthesize("for", stmt.initializer, stmt.condition,
+                        stmt.increment, stmt.body);
+  }
+
   @Override
   public String visitFunctionStmt(Stmt.Function stmt) {
     List<String> paramNames = new ArrayList<>();
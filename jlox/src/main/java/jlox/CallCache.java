@@ -0,0 +1,29 @@
+package jlox;
+
+// Remembers the last callee of one call site and its arity, so a site
+// that keeps calling the same function checks the argument count without
+// asking the function again.
+class CallCache {
+  private Object callee;
+  private int arity;
+
+  LoxCallable check(Object callee, int argumentCount, Token paren) {
+    if (callee != this.callee) {
+      if (!(callee instanceof LoxCallable)) {
+        throw new RuntimeError(paren,
+            "Can only call functions and classes.");
+      }
+
+      this.arity = ((LoxCallable)callee).arity();
+      this.callee = callee;
+    }
+
+    if (argumentCount != arity) {
+      throw new RuntimeError(paren, "Expected " +
+          arity + " arguments but got " +
+          argumentCount + ".");
+    }
+
+    return (LoxCallable)callee;
+  }
+}
@@ -0,0 +1,14 @@
+package jlox;
+
+// Holds a local variable that a closure captures. The variable's slot
+// holds the cell instead of the value, and so does every closure that
+// uses it, which lets the variable outlive the scope that declared it
+// without keeping that scope's environment alive. Globals live in cells
+// too, one per name; see Interpreter.globalCell().
+class Cell {
+  Object value;
+
+  Cell(Object value) {
+    this.value = value;
+  }
+}
@@ -0,0 +1,1612 @@
+package jlox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Compiles the resolved syntax tree once into a tree of executor nodes and
+// runs those instead of visiting the AST. There is one node class per
+// operator, per call arity and per kind of variable access, so executing a
+// node does no double dispatch and no switching on the token type: each
+// execute() call site sees only a few receiver classes and the JIT can
+// inline through it.
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.ExprNode>,
+                                 Stmt.Visitor<ClosureCompiler.StmtNode> {
+  private final Interpreter interpreter;
+  // How many scopes enclose the code being compiled. At zero we are at the
+  // top level, where declarations define globals.
+  private int scopeDepth = 0;
+
+  ClosureCompiler(Interpreter interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  abstract static class ExprNode {
+    abstract Object execute(Environment environment);
+
+    // Nodes that can produce their result without boxing it override
+    // these.
+    double executeNumber(Environment environment) throws UnexpectedType {
+      return expectNumber(execute(environment));
+    }
+
+    boolean executeCondition(Environment environment) {
+      return Interpreter.isTruthy(execute(environment));
+    }
+  }
+
+  // Thrown by executeNumber() when the value turned out not to be a
+  // number. It carries the value so the caller can carry on along its
+  // generic path without evaluating anything twice.
+  static final class UnexpectedType extends Exception {
+    final Object value;
+
+    UnexpectedType(Object value) {
+      super(null, null, false, false);
+      this.value = value;
+    }
+  }
+
+  static double expectNumber(Object value) throws UnexpectedType {
+    if (value instanceof Double) return (double)value;
+    throw new UnexpectedType(value);
+  }
+
+  // Statements complete with Interpreter.NORMAL, or with the value of a
+  // return statement that has to propagate out of the function.
+  abstract static class StmtNode {
+    abstract Object execute(Environment environment);
+  }
+
+  StmtNode[] compile(List<Stmt> statements) {
+    StmtNode[] nodes = new StmtNode[statements.size()];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = compile(statements.get(i));
+    }
+
+    return nodes;
+  }
+
+  private StmtNode compile(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  private ExprNode compile(Expr expr) {
+    return expr.accept(this);
+  }
+
+  StmtNode compileFunctionBody(Stmt.Function function) {
+    scopeDepth++;
+    StmtNode body = new Sequence(compile(function.body));
+    scopeDepth--;
+    return body;
+  }
+
+  private StmtNode define(Token name, int slot, ExprNode value,
+                          boolean isCaptured) {
+    if (scopeDepth == 0) {
+      return new DefineGlobal(interpreter,
+                              interpreter.globalCell(name.lexeme),
+                              name.lexeme, value);
+    }
+
+    if (isCaptured) return new DefineCell(slot, value);
+    return new DefineLocal(slot, value);
+  }
+
+  @Override
+  public StmtNode visitBlockStmt(Stmt.Block stmt) {
+    scopeDepth++;
+    StmtNode[] statements = compile(stmt.statements);
+    scopeDepth--;
+    if (stmt.slots == 0) return new Sequence(statements);
+    return new Block(interpreter, stmt.slots, statements);
+  }
+
+  @Override
+  public StmtNode visitClassStmt(Stmt.Class stmt) {
+    ExprNode superclass = null;
+    if (stmt.superclass != null) {
+      superclass = compile(stmt.superclass);
+      scopeDepth++;
+    }
+
+    StmtNode[] methods = new StmtNode[stmt.methods.size()];
+    for (int i = 0; i < methods.length; i++) {
+      methods[i] = compileFunctionBody(stmt.methods.get(i));
+    }
+
+    if (superclass != null) scopeDepth--;
+
+    return define(stmt.name, stmt.slot,
+                  new MakeClass(stmt, superclass, methods),
+                  stmt.isCaptured);
+  }
+
+  @Override
+  public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+    return new Expression(compile(stmt.expression));
+  }
+
+  @Override
+  public StmtNode visitForStmt(Stmt.For stmt) {
+    scopeDepth++;
+    StmtNode loop = compileFor(stmt);
+    scopeDepth--;
+    if (stmt.slots == 0) return loop;
+    return new Block(interpreter, stmt.slots, new StmtNode[] { loop });
+  }
+
+  private StmtNode compileFor(Stmt.For stmt) {
+    ExprNode condition = stmt.condition != null
+        ? compile(stmt.condition) : new Constant(true);
+    StmtNode body = compile(stmt.body);
+    ExprNode increment = stmt.increment != null
+        ? compile(stmt.increment) : null;
+
+    if (stmt.isCounted) {
+      Stmt.Var counter = (Stmt.Var)stmt.initializer;
+      Expr.Binary comparison = (Expr.Binary)stmt.condition;
+      // Taken when the start value turns out not to be a number.
+      For fallback = new For(null, condition, body, increment);
+      return new CountedFor(counter.slot, compile(counter.initializer),
+          comparison.operator, compile(comparison.right), body,
+          stmt.step, stmt.readsCounter, fallback);
+    }
+
+    StmtNode initializer = stmt.initializer != null
+        ? compile(stmt.initializer) : null;
+    return new For(initializer, condition, body, increment);
+  }
+
+  @Override
+  public StmtNode visitFunctionStmt(Stmt.Function stmt) {
+    StmtNode body = compileFunctionBody(stmt);
+    return define(stmt.name, stmt.slot, new MakeFunction(stmt, body),
+                  stmt.isCaptured);
+  }
+
+  @Override
+  public StmtNode visitIfStmt(Stmt.If stmt) {
+    ExprNode condition = compile(stmt.condition);
+    StmtNode thenBranch = compile(stmt.thenBranch);
+    if (stmt.elseBranch == null) return new If(condition, thenBranch);
+
+    return new IfElse(condition, thenBranch, compile(stmt.elseBranch));
+  }
+
+  @Override
+  public StmtNode visitPrintStmt(Stmt.Print stmt) {
+    return new Print(compile(stmt.expression));
+  }
+
+  @Override
+  public StmtNode visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) return new Return(new Constant(null));
+    if (stmt.isTailCall) return compileTailCall((Expr.Call)stmt.value);
+    return new Return(compile(stmt.value));
+  }
+
+  private StmtNode compileTailCall(Expr.Call expr) {
+    ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+    if (expr.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get)expr.callee;
+      ExprNode object = compile(get.object);
+      for (int i = 0; i < arguments.length; i++) {
+        arguments[i] = compile(expr.arguments.get(i));
+      }
+      return new ReturnInvoke(interpreter, expr.paren, object, get.name,
+                              arguments);
+    }
+
+    ExprNode callee = compile(expr.callee);
+    for (int i = 0; i < arguments.length; i++) {
+      arguments[i] = compile(expr.arguments.get(i));
+    }
+    return new ReturnCall(interpreter, expr.paren, callee, arguments);
+  }
+
+  @Override
+  public StmtNode visitVarStmt(Stmt.Var stmt) {
+    ExprNode value = new Constant(null);
+    if (stmt.initializer != null) value = compile(stmt.initializer);
+
+    return define(stmt.name, stmt.slot, value, stmt.isCaptured);
+  }
+
+  @Override
+  public StmtNode visitWhileStmt(Stmt.While stmt) {
+    return new While(compile(stmt.condition), compile(stmt.body));
+  }
+
+  @Override
+  public ExprNode visitAssignExpr(Expr.Assign expr) {
+    ExprNode value = compile(expr.value);
+    if (expr.inCell) return new SetCell(expr.depth, expr.slot, value);
+    switch (expr.depth) {
+      case -1:
+        return new SetGlobal(interpreter,
+                             interpreter.globalCell(expr.name.lexeme),
+                             expr.name, value);
+      case 0: return new SetLocal0(expr.slot, value);
+      case 1: return new SetLocal1(expr.slot, value);
+      default: return new SetLocal(expr.depth, expr.slot, value);
+    }
+  }
+
+  @Override
+  public ExprNode visitBinaryExpr(Expr.Binary expr) {
+    ExprNode left = compile(expr.left);
+    ExprNode right = compile(expr.right);
+    Token operator = expr.operator;
+
+    switch (operator.type) {
+      case BANG_EQUAL: return new NotEqual(left, right);
+      case EQUAL_EQUAL: return new Equal(left, right);
+      case GREATER: return new Greater(operator, left, right);
+      case GREATER_EQUAL: return new GreaterEqual(operator, left, right);
+      case LESS: return new Less(operator, left, right);
+      case LESS_EQUAL: return new LessEqual(operator, left, right);
+      case MINUS: return new Subtract(operator, left, right);
+      case PLUS: return new Add(operator, left, right);
+      case SLASH: return new Divide(operator, left, right);
+      case STAR: return new Multiply(operator, left, right);
+      default:
+        // Unreachable.
+        return null;
+    }
+  }
+
+  @Override
+  public ExprNode visitCallExpr(Expr.Call expr) {
+    ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+    if (expr.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get)expr.callee;
+      ExprNode object = compile(get.object);
+      for (int i = 0; i < arguments.length; i++) {
+        arguments[i] = compile(expr.arguments.get(i));
+      }
+      return new Invoke(interpreter, expr.paren, object, get.name,
+                        arguments);
+    }
+
+    ExprNode callee = compile(expr.callee);
+    for (int i = 0; i < arguments.length; i++) {
+      arguments[i] = compile(expr.arguments.get(i));
+    }
+
+    switch (arguments.length) {
+      case 0: return new Call0(interpreter, expr.paren, callee);
+      case 1:
+        return new Call1(interpreter, expr.paren, callee, arguments[0]);
+      case 2:
+        return new Call2(interpreter, expr.paren, callee,
+                         arguments[0], arguments[1]);
+      case 3:
+        return new Call3(interpreter, expr.paren, callee,
+                         arguments[0], arguments[1], arguments[2]);
+      case 4:
+        return new Call4(interpreter, expr.paren, callee, arguments[0],
+                         arguments[1], arguments[2], arguments[3]);
+      default:
+        return new CallN(interpreter, expr.paren, callee, arguments);
+    }
+  }
+
+  @Override
+  public ExprNode visitGetExpr(Expr.Get expr) {
+    return new GetProperty(compile(expr.object), expr.name);
+  }
+
+  @Override
+  public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+    return compile(expr.expression);
+  }
+
+  @Override
+  public ExprNode visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value instanceof Double) {
+      return new NumberConstant((Double)expr.value);
+    }
+
+    return new Constant(expr.value);
+  }
+
+  @Override
+  public ExprNode visitLogicalExpr(Expr.Logical expr) {
+    ExprNode left = compile(expr.left);
+    ExprNode right = compile(expr.right);
+    if (expr.operator.type == TokenType.OR) return new Or(left, right);
+    return new And(left, right);
+  }
+
+  @Override
+  public ExprNode visitSetExpr(Expr.Set expr) {
+    return new SetProperty(compile(expr.object), expr.name,
+                           compile(expr.value));
+  }
+
+  @Override
+  public ExprNode visitSuperExpr(Expr.Super expr) {
+    return new Super(expr.depth, expr.slot, compile(expr.receiver),
+                     expr.method);
+  }
+
+  @Override
+  public ExprNode visitThisExpr(Expr.This expr) {
+    if (expr.inCell) return new GetCell(expr.depth, expr.slot);
+    return getLocal(expr.depth, expr.slot);
+  }
+
+  @Override
+  public ExprNode visitUnaryExpr(Expr.Unary expr) {
+    ExprNode right = compile(expr.right);
+    if (expr.operator.type == TokenType.BANG) return new Not(right);
+    return new Negate(expr.operator, right);
+  }
+
+  @Override
+  public ExprNode visitVariableExpr(Expr.Variable expr) {
+    if (expr.depth == -1) {
+      return new GetGlobal(interpreter.globalCell(expr.name.lexeme),
+                           expr.name);
+    }
+
+    if (expr.inCell) return new GetCell(expr.depth, expr.slot);
+    return getLocal(expr.depth, expr.slot);
+  }
+
+  private ExprNode getLocal(int depth, int slot) {
+    switch (depth) {
+      case 0: return new GetLocal0(slot);
+      case 1: return new GetLocal1(slot);
+      default: return new GetLocal(depth, slot);
+    }
+  }
+
+  // Statements.
+
+  static final class Sequence extends StmtNode {
+    private final StmtNode[] statements;
+
+    Sequence(StmtNode[] statements) {
+      this.statements = statements;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      for (StmtNode statement : statements) {
+        Object completion = statement.execute(environment);
+        if (completion != Interpreter.NORMAL) return completion;
+      }
+      return Interpreter.NORMAL;
+    }
+  }
+
+  // An outermost block at the top level, the only kind with an
+  // environment of its own.
+  static final class Block extends StmtNode {
+    private final Interpreter interpreter;
+    private final int slots;
+    private final StmtNode[] statements;
+
+    Block(Interpreter interpreter, int slots, StmtNode[] statements) {
+      this.interpreter = interpreter;
+      this.slots = slots;
+      this.statements = statements;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Environment inner = interpreter.acquire(environment, slots);
+      try {
+        for (StmtNode statement : statements) {
+          Object completion = statement.execute(inner);
+          if (completion != Interpreter.NORMAL) return completion;
+        }
+        return Interpreter.NORMAL;
+      } finally {
+        interpreter.release();
+      }
+    }
+  }
+
+  static final class Expression extends StmtNode {
+    private final ExprNode expression;
+
+    Expression(ExprNode expression) {
+      this.expression = expression;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      expression.execute(environment);
+      return Interpreter.NORMAL;
+    }
+  }
+
+  static final class Print extends StmtNode {
+    private final ExprNode expression;
+
+    Print(ExprNode expression) {
+      this.expression = expression;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Object value = expression.execute(environment);
+      System.out.println(Interpreter.stringify(value));
+      return Interpreter.NORMAL;
+    }
+  }
+
+  static final class If extends StmtNode {
+    private final ExprNode condition;
+    private final StmtNode thenBranch;
+
+    If(ExprNode condition, StmtNode thenBranch) {
+      this.condition = condition;
+      this.thenBranch = thenBranch;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      if (condition.executeCondition(environment)) {
+        return thenBranch.execute(environment);
+      }
+      return Interpreter.NORMAL;
+    }
+  }
+
+  static final class IfElse extends StmtNode {
+    private final ExprNode condition;
+    private final StmtNode thenBranch;
+    private final StmtNode elseBranch;
+
+    IfElse(ExprNode condition, StmtNode thenBranch, StmtNode elseBranch) {
+      this.condition = condition;
+      this.thenBranch = thenBranch;
+      this.elseBranch = elseBranch;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      if (condition.executeCondition(environment)) {
+        return thenBranch.execute(environment);
+      }
+      return elseBranch.execute(environment);
+    }
+  }
+
+  static final class While extends StmtNode {
+    private final ExprNode condition;
+    private final StmtNode body;
+
+    While(ExprNode condition, StmtNode body) {
+      this.condition = condition;
+      this.body = body;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      while (condition.executeCondition(environment)) {
+        Object completion = body.execute(environment);
+        if (completion != Interpreter.NORMAL) return completion;
+      }
+      return Interpreter.NORMAL;
+    }
+  }
+
+  static final class For extends StmtNode {
+    private final StmtNode initializer;
+    private final ExprNode condition;
+    private final StmtNode body;
+    private final ExprNode increment;
+
+    For(StmtNode initializer, ExprNode condition, StmtNode body,
+        ExprNode increment) {
+      this.initializer = initializer;
+      this.condition = condition;
+      this.body = body;
+      this.increment = increment;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      if (initializer != null) initializer.execute(environment);
+      while (condition.executeCondition(environment)) {
+        Object completion = body.execute(environment);
+        if (completion != Interpreter.NORMAL) return completion;
+        if (increment != null) increment.execute(environment);
+      }
+      return Interpreter.NORMAL;
+    }
+  }
+
+  // A loop the resolver found counts a variable up or down by a constant
+  // step. The variable is kept in a double, which is only stored to its
+  // slot for the body or the bound to read.
+  static final class CountedFor extends StmtNode {
+    private final int slot;
+    private final ExprNode start;
+    private final Token operator;
+    private final ExprNode bound;
+    private final StmtNode body;
+    private final double step;
+    private final boolean readsCounter;
+    private final For fallback;
+
+    CountedFor(int slot, ExprNode start, Token operator, ExprNode bound,
+               StmtNode body, double step, boolean readsCounter,
+               For fallback) {
+      this.slot = slot;
+      this.start = start;
+      this.operator = operator;
+      this.bound = bound;
+      this.body = body;
+      this.step = step;
+      this.readsCounter = readsCounter;
+      this.fallback = fallback;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Object value = start.execute(environment);
+      environment.set(slot, value);
+      if (!(value instanceof Double)) return fallback.execute(environment);
+
+      TokenType type = operator.type;
+      double counter = (double)value;
+      while (true) {
+        if (readsCounter) environment.set(slot, counter);
+
+        double limit;
+        try {
+          limit = bound.executeNumber(environment);
+        } catch (UnexpectedType unexpected) {
+          throw new RuntimeError(operator, "Operands must be numbers.");
+        }
+        if (!Interpreter.compare(type, counter, limit)) {
+          return Interpreter.NORMAL;
+        }
+
+        Object completion = body.execute(environment);
+        if (completion != Interpreter.NORMAL) return completion;
+        counter += step;
+      }
+    }
+  }
+
+  // Completes with the value instead of throwing it. When returns threw,
+  // calls were slower here than in the tree walker; examples/engines.lox
+  // times calls and loops separately.
+  static final class Return extends StmtNode {
+    private final ExprNode value;
+
+    Return(ExprNode value) {
+      this.value = value;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      return value.execute(environment);
+    }
+  }
+
+  // Return statements whose value is a call complete with a TailCall
+  // rather than making the call; see Interpreter.tailCall().
+  static final class ReturnCall extends StmtNode {
+    private final Interpreter interpreter;
+    private final Token paren;
+    private final ExprNode callee;
+    private final ExprNode[] arguments;
+    private final CallCache cache = new CallCache();
+
+    ReturnCall(Interpreter interpreter, Token paren, ExprNode callee,
+               ExprNode[] arguments) {
+      this.interpreter = interpreter;
+      this.paren = paren;
+      this.callee = callee;
+      this.arguments = arguments;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Object function = callee.execute(environment);
+      Object[] values = new Object[arguments.length];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = arguments[i].execute(environment);
+      }
+
+      return Interpreter.tailCall(interpreter, null,
+          cache.check(function, values.length, paren), values);
+    }
+  }
+
+  static final class ReturnInvoke extends StmtNode {
+    private final Interpreter interpreter;
+    private final Token paren;
+    private final ExprNode object;
+    private final Token name;
+    private final ExprNode[] arguments;
+    private final PropertyCache cache = new PropertyCache();
+    private final CallCache callCache = new CallCache();
+
+    ReturnInvoke(Interpreter interpreter, Token paren, ExprNode object,
+                 Token name, ExprNode[] arguments) {
+      this.interpreter = interpreter;
+      this.paren = paren;
+      this.object = object;
+      this.name = name;
+      this.arguments = arguments;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      LoxInstance receiver = Interpreter.instanceForGet(
+          object.execute(environment), name);
+      Object callee = cache.find(receiver, name);
+
+      Object[] values = new Object[arguments.length];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = arguments[i].execute(environment);
+      }
+
+      return Interpreter.tailCall(interpreter, receiver,
+          callCache.check(callee, values.length, paren), values);
+    }
+  }
+
+  static final class DefineLocal extends StmtNode {
+    private final int slot;
+    private final ExprNode value;
+
+    DefineLocal(int slot, ExprNode value) {
+      this.slot = slot;
+      this.value = value;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      environment.set(slot, value.execute(environment));
+      return Interpreter.NORMAL;
+    }
+  }
+
+  // Defines a local that closures capture. The cell goes in first, so a
+  // function or class being defined can capture its own name.
+  static final class DefineCell extends StmtNode {
+    private final int slot;
+    private final ExprNode value;
+
+    DefineCell(int slot, ExprNode value) {
+      this.slot = slot;
+      this.value = value;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Cell cell = new Cell(null);
+      environment.set(slot, cell);
+      cell.value = value.execute(environment);
+      return Interpreter.NORMAL;
+    }
+  }
+
+  static final class DefineGlobal extends StmtNode {
+    private final Interpreter interpreter;
+    private final Cell cell;
+    private final String name;
+    private final ExprNode value;
+
+    DefineGlobal(Interpreter interpreter, Cell cell, String name,
+                 ExprNode value) {
+      this.interpreter = interpreter;
+      this.cell = cell;
+      this.name = name;
+      this.value = value;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      interpreter.setGlobal(cell, name, value.execute(environment));
+      return Interpreter.NORMAL;
+    }
+  }
+
+  // Declarations produce their value through an expression node, so that
+  // the same Define nodes bind it.
+
+  static final class MakeFunction extends ExprNode {
+    private final Stmt.Function declaration;
+    private final StmtNode body;
+
+    MakeFunction(Stmt.Function declaration, StmtNode body) {
+      this.declaration = declaration;
+      this.body = body;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      return new LoxFunction(declaration,
+          Environment.capture(environment, declaration.captures), false,
+          body);
+    }
+  }
+
+  static final class MakeClass extends ExprNode {
+    private final Stmt.Class declaration;
+    private final ExprNode superclass;
+    private final StmtNode[] methods;
+
+    MakeClass(Stmt.Class declaration, ExprNode superclass,
+              StmtNode[] methods) {
+      this.declaration = declaration;
+      this.superclass = superclass;
+      this.methods = methods;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Object superclass = null;
+      if (this.superclass != null) {
+        superclass = this.superclass.execute(environment);
+        if (!(superclass instanceof LoxClass)) {
+          throw new RuntimeError(declaration.superclass.name,
+              "Superclass must be a class.");
+        }
+
+        environment = new Environment(environment, 1);
+        environment.define(new Cell(superclass));
+      }
+
+      Map<String, LoxFunction> methods = new HashMap<>();
+      for (int i = 0; i < this.methods.length; i++) {
+        Stmt.Function method = declaration.methods.get(i);
+        LoxFunction function = new LoxFunction(method,
+            Environment.capture(environment, method.captures),
+            method.name.lexeme.equals("init"), this.methods[i]);
+        methods.put(method.name.lexeme, function);
+      }
+
+      return new LoxClass(declaration.name.lexeme,
+          (LoxClass)superclass, methods);
+    }
+  }
+
+  // Variables.
+
+  static final class Constant extends ExprNode {
+    private final Object value;
+
+    Constant(Object value) {
+      this.value = value;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      return value;
+    }
+  }
+
+  static final class NumberConstant extends ExprNode {
+    private final Double boxed;
+    private final double value;
+
+    NumberConstant(Double value) {
+      this.boxed = value;
+      this.value = value;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      return boxed;
+    }
+
+    @Override
+    double executeNumber(Environment environment) {
+      return value;
+    }
+  }
+
+  static final class GetLocal0 extends ExprNode {
+    private final int slot;
+
+    GetLocal0(int slot) {
+      this.slot = slot;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      return environment.get(slot);
+    }
+  }
+
+  static final class GetLocal1 extends ExprNode {
+    private final int slot;
+
+    GetLocal1(int slot) {
+      this.slot = slot;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      return environment.enclosing.get(slot);
+    }
+  }
+
+  static final class GetLocal extends ExprNode {
+    private final int depth;
+    private final int slot;
+
+    GetLocal(int depth, int slot) {
+      this.depth = depth;
+      this.slot = slot;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      return environment.getAt(depth, slot);
+    }
+  }
+
+  static final class GetCell extends ExprNode {
+    private final int depth;
+    private final int slot;
+
+    GetCell(int depth, int slot) {
+      this.depth = depth;
+      this.slot = slot;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      return ((Cell)environment.getAt(depth, slot)).value;
+    }
+  }
+
+  static final class GetGlobal extends ExprNode {
+    private final Cell cell;
+    private final Token name;
+
+    GetGlobal(Cell cell, Token name) {
+      this.cell = cell;
+      this.name = name;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Object value = cell.value;
+      if (value == Interpreter.UNDEFINED) {
+        throw Interpreter.undefined(name);
+      }
+
+      return value;
+    }
+  }
+
+  static final class SetLocal0 extends ExprNode {
+    private final int slot;
+    private final ExprNode value;
+
+    SetLocal0(int slot, ExprNode value) {
+      this.slot = slot;
+      this.value = value;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Object result = value.execute(environment);
+      environment.set(slot, result);
+      return result;
+    }
+  }
+
+  static final class SetLocal1 extends ExprNode {
+    private final int slot;
+    private final ExprNode value;
+
+    SetLocal1(int slot, ExprNode value) {
+      this.slot = slot;
+      this.value = value;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Object result = value.execute(environment);
+      environment.enclosing.set(slot, result);
+      return result;
+    }
+  }
+
+  static final class SetLocal extends ExprNode {
+    private final int depth;
+    private final int slot;
+    private final ExprNode value;
+
+    SetLocal(int depth, int slot, ExprNode value) {
+      this.depth = depth;
+      this.slot = slot;
+      this.value = value;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Object result = value.execute(environment);
+      environment.assignAt(depth, slot, result);
+      return result;
+    }
+  }
+
+  static final class SetCell extends ExprNode {
+    private final int depth;
+    private final int slot;
+    private final ExprNode value;
+
+    SetCell(int depth, int slot, ExprNode value) {
+      this.depth = depth;
+      this.slot = slot;
+      this.value = value;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Object result = value.execute(environment);
+      ((Cell)environment.getAt(depth, slot)).value = result;
+      return result;
+    }
+  }
+
+  static final class SetGlobal extends ExprNode {
+    private final Interpreter interpreter;
+    private final Cell cell;
+    private final Token name;
+    private final ExprNode value;
+
+    SetGlobal(Interpreter interpreter, Cell cell, Token name,
+              ExprNode value) {
+      this.interpreter = interpreter;
+      this.cell = cell;
+      this.name = name;
+      this.value = value;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Object result = value.execute(environment);
+      if (cell.value == Interpreter.UNDEFINED) {
+        throw Interpreter.undefined(name);
+      }
+
+      interpreter.setGlobal(cell, name.lexeme, result);
+      return result;
+    }
+  }
+
+  // Operators. Arithmetic and comparisons ask their operands for unboxed
+  // doubles, so a numeric expression only boxes its final result.
+
+  abstract static class Arithmetic extends ExprNode {
+    final Token operator;
+    private final ExprNode left;
+    private final ExprNode right;
+    // Cleared the first time an operand is not a number, after which the
+    // node only takes the generic path.
+    private boolean numeric = true;
+
+    Arithmetic(Token operator, ExprNode left, ExprNode right) {
+      this.operator = operator;
+      this.left = left;
+      this.right = right;
+    }
+
+    abstract double apply(double a, double b);
+
+    // The operation on boxed values, including its type checks.
+    abstract Object generic(Object a, Object b);
+
+    @Override
+    Object execute(Environment environment) {
+      if (numeric) {
+        try {
+          return executeNumber(environment);
+        } catch (UnexpectedType unexpected) {
+          return unexpected.value;
+        }
+      }
+
+      return generic(left.execute(environment), right.execute(environment));
+    }
+
+    @Override
+    double executeNumber(Environment environment) throws UnexpectedType {
+      if (!numeric) {
+        return expectNumber(generic(left.execute(environment),
+                                    right.execute(environment)));
+      }
+
+      double a;
+      try {
+        a = left.executeNumber(environment);
+      } catch (UnexpectedType unexpected) {
+        numeric = false;
+        throw new UnexpectedType(generic(unexpected.value,
+                                         right.execute(environment)));
+      }
+
+      double b;
+      try {
+        b = right.executeNumber(environment);
+      } catch (UnexpectedType unexpected) {
+        numeric = false;
+        throw new UnexpectedType(generic(a, unexpected.value));
+      }
+
+      return apply(a, b);
+    }
+  }
+
+  static final class Add extends Arithmetic {
+    Add(Token operator, ExprNode left, ExprNode right) {
+      super(operator, left, right);
+    }
+
+    @Override
+    double apply(double a, double b) {
+      return a + b;
+    }
+
+    @Override
+    Object generic(Object a, Object b) {
+      if (a instanceof Double && b instanceof Double) {
+        return (double)a + (double)b;
+      }
+
+      if (a instanceof String && b instanceof String) {
+        return (String)a + (String)b;
+      }
+
+      throw new RuntimeError(operator,
+          "Operands must be two numbers or two strings.");
+    }
+  }
+
+  static final class Subtract extends Arithmetic {
+    Subtract(Token operator, ExprNode left, ExprNode right) {
+      super(operator, left, right);
+    }
+
+    @Override
+    double apply(double a, double b) {
+      return a - b;
+    }
+
+    @Override
+    Object generic(Object a, Object b) {
+      Interpreter.checkNumberOperands(operator, a, b);
+      return (double)a - (double)b;
+    }
+  }
+
+  static final class Multiply extends Arithmetic {
+    Multiply(Token operator, ExprNode left, ExprNode right) {
+      super(operator, left, right);
+    }
+
+    @Override
+    double apply(double a, double b) {
+      return a * b;
+    }
+
+    @Override
+    Object generic(Object a, Object b) {
+      Interpreter.checkNumberOperands(operator, a, b);
+      return (double)a * (double)b;
+    }
+  }
+
+  static final class Divide extends Arithmetic {
+    Divide(Token operator, ExprNode left, ExprNode right) {
+      super(operator, left, right);
+    }
+
+    @Override
+    double apply(double a, double b) {
+      return a / b;
+    }
+
+    @Override
+    Object generic(Object a, Object b) {
+      Interpreter.checkNumberOperands(operator, a, b);
+      return (double)a / (double)b;
+    }
+  }
+
+  // Comparisons only accept numbers, so they never need a generic path.
+  abstract static class Comparison extends ExprNode {
+    private final Token operator;
+    private final ExprNode left;
+    private final ExprNode right;
+
+    Comparison(Token operator, ExprNode left, ExprNode right) {
+      this.operator = operator;
+      this.left = left;
+      this.right = right;
+    }
+
+    abstract boolean apply(double a, double b);
+
+    @Override
+    Object execute(Environment environment) {
+      return executeCondition(environment);
+    }
+
+    @Override
+    boolean executeCondition(Environment environment) {
+      double a;
+      try {
+        a = left.executeNumber(environment);
+      } catch (UnexpectedType unexpected) {
+        right.execute(environment);
+        throw new RuntimeError(operator, "Operands must be numbers.");
+      }
+
+      try {
+        return apply(a, right.executeNumber(environment));
+      } catch (UnexpectedType unexpected) {
+        throw new RuntimeError(operator, "Operands must be numbers.");
+      }
+    }
+  }
+
+  static final class Greater extends Comparison {
+    Greater(Token operator, ExprNode left, ExprNode right) {
+      super(operator, left, right);
+    }
+
+    @Override
+    boolean apply(double a, double b) {
+      return a > b;
+    }
+  }
+
+  static final class GreaterEqual extends Comparison {
+    GreaterEqual(Token operator, ExprNode left, ExprNode right) {
+      super(operator, left, right);
+    }
+
+    @Override
+    boolean apply(double a, double b) {
+      return a >= b;
+    }
+  }
+
+  static final class Less extends Comparison {
+    Less(Token operator, ExprNode left, ExprNode right) {
+      super(operator, left, right);
+    }
+
+    @Override
+    boolean apply(double a, double b) {
+      return a < b;
+    }
+  }
+
+  static final class LessEqual extends Comparison {
+    LessEqual(Token operator, ExprNode left, ExprNode right) {
+      super(operator, left, right);
+    }
+
+    @Override
+    boolean apply(double a, double b) {
+      return a <= b;
+    }
+  }
+
+  static final class Equal extends ExprNode {
+    private final ExprNode left;
+    private final ExprNode right;
+
+    Equal(ExprNode left, ExprNode right) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      return executeCondition(environment);
+    }
+
+    @Override
+    boolean executeCondition(Environment environment) {
+      Object a = left.execute(environment);
+      Object b = right.execute(environment);
+      return Interpreter.isEqual(a, b);
+    }
+  }
+
+  static final class NotEqual extends ExprNode {
+    private final ExprNode left;
+    private final ExprNode right;
+
+    NotEqual(ExprNode left, ExprNode right) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      return executeCondition(environment);
+    }
+
+    @Override
+    boolean executeCondition(Environment environment) {
+      Object a = left.execute(environment);
+      Object b = right.execute(environment);
+      return !Interpreter.isEqual(a, b);
+    }
+  }
+
+  static final class Negate extends ExprNode {
+    private final Token operator;
+    private final ExprNode right;
+
+    Negate(Token operator, ExprNode right) {
+      this.operator = operator;
+      this.right = right;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      return executeNumber(environment);
+    }
+
+    @Override
+    double executeNumber(Environment environment) {
+      try {
+        return -right.executeNumber(environment);
+      } catch (UnexpectedType unexpected) {
+        throw new RuntimeError(operator, "Operand must be a number.");
+      }
+    }
+  }
+
+  static final class Not extends ExprNode {
+    private final ExprNode right;
+
+    Not(ExprNode right) {
+      this.right = right;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      return executeCondition(environment);
+    }
+
+    @Override
+    boolean executeCondition(Environment environment) {
+      return !right.executeCondition(environment);
+    }
+  }
+
+  static final class And extends ExprNode {
+    private final ExprNode left;
+    private final ExprNode right;
+
+    And(ExprNode left, ExprNode right) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Object value = left.execute(environment);
+      if (!Interpreter.isTruthy(value)) return value;
+      return right.execute(environment);
+    }
+
+    @Override
+    boolean executeCondition(Environment environment) {
+      return left.executeCondition(environment) &&
+          right.executeCondition(environment);
+    }
+  }
+
+  static final class Or extends ExprNode {
+    private final ExprNode left;
+    private final ExprNode right;
+
+    Or(ExprNode left, ExprNode right) {
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Object value = left.execute(environment);
+      if (Interpreter.isTruthy(value)) return value;
+      return right.execute(environment);
+    }
+
+    @Override
+    boolean executeCondition(Environment environment) {
+      return left.executeCondition(environment) ||
+          right.executeCondition(environment);
+    }
+  }
+
+  // Calls. Arguments are evaluated before the callee is checked, the same
+  // order the tree-walking interpreter uses.
+
+  static final class Call0 extends ExprNode {
+    private final Interpreter interpreter;
+    private final Token paren;
+    private final ExprNode callee;
+    private final CallCache cache = new CallCache();
+
+    Call0(Interpreter interpreter, Token paren, ExprNode callee) {
+      this.interpreter = interpreter;
+      this.paren = paren;
+      this.callee = callee;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Object function = callee.execute(environment);
+      return cache.check(function, 0, paren).call0(interpreter);
+    }
+  }
+
+  static final class Call1 extends ExprNode {
+    private final Interpreter interpreter;
+    private final Token paren;
+    private final ExprNode callee;
+    private final ExprNode argument0;
+    private final CallCache cache = new CallCache();
+
+    Call1(Interpreter interpreter, Token paren, ExprNode callee,
+          ExprNode argument0) {
+      this.interpreter = interpreter;
+      this.paren = paren;
+      this.callee = callee;
+      this.argument0 = argument0;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Object function = callee.execute(environment);
+      Object a = argument0.execute(environment);
+      return cache.check(function, 1, paren).call1(interpreter, a);
+    }
+  }
+
+  static final class Call2 extends ExprNode {
+    private final Interpreter interpreter;
+    private final Token paren;
+    private final ExprNode callee;
+    private final ExprNode argument0;
+    private final ExprNode argument1;
+    private final CallCache cache = new CallCache();
+
+    Call2(Interpreter interpreter, Token paren, ExprNode callee,
+          ExprNode argument0, ExprNode argument1) {
+      this.interpreter = interpreter;
+      this.paren = paren;
+      this.callee = callee;
+      this.argument0 = argument0;
+      this.argument1 = argument1;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Object function = callee.execute(environment);
+      Object a = argument0.execute(environment);
+      Object b = argument1.execute(environment);
+      return cache.check(function, 2, paren).call2(interpreter, a, b);
+    }
+  }
+
+  static final class Call3 extends ExprNode {
+    private final Interpreter interpreter;
+    private final Token paren;
+    private final ExprNode callee;
+    private final ExprNode argument0;
+    private final ExprNode argument1;
+    private final ExprNode argument2;
+    private final CallCache cache = new CallCache();
+
+    Call3(Interpreter interpreter, Token paren, ExprNode callee,
+          ExprNode argument0, ExprNode argument1, ExprNode argument2) {
+      this.interpreter = interpreter;
+      this.paren = paren;
+      this.callee = callee;
+      this.argument0 = argument0;
+      this.argument1 = argument1;
+      this.argument2 = argument2;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Object function = callee.execute(environment);
+      Object a = argument0.execute(environment);
+      Object b = argument1.execute(environment);
+      Object c = argument2.execute(environment);
+      return cache.check(function, 3, paren).call3(interpreter, a, b, c);
+    }
+  }
+
+  static final class Call4 extends ExprNode {
+    private final Interpreter interpreter;
+    private final Token paren;
+    private final ExprNode callee;
+    private final ExprNode argument0;
+    private final ExprNode argument1;
+    private final ExprNode argument2;
+    private final ExprNode argument3;
+    private final CallCache cache = new CallCache();
+
+    Call4(Interpreter interpreter, Token paren, ExprNode callee,
+          ExprNode argument0, ExprNode argument1, ExprNode argument2,
+          ExprNode argument3) {
+      this.interpreter = interpreter;
+      this.paren = paren;
+      this.callee = callee;
+      this.argument0 = argument0;
+      this.argument1 = argument1;
+      this.argument2 = argument2;
+      this.argument3 = argument3;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Object function = callee.execute(environment);
+      Object a = argument0.execute(environment);
+      Object b = argument1.execute(environment);
+      Object c = argument2.execute(environment);
+      Object d = argument3.execute(environment);
+      return cache.check(function, 4, paren)
+          .call4(interpreter, a, b, c, d);
+    }
+  }
+
+  static final class CallN extends ExprNode {
+    private final Interpreter interpreter;
+    private final Token paren;
+    private final ExprNode callee;
+    private final ExprNode[] arguments;
+    private final CallCache cache = new CallCache();
+
+    CallN(Interpreter interpreter, Token paren, ExprNode callee,
+          ExprNode[] arguments) {
+      this.interpreter = interpreter;
+      this.paren = paren;
+      this.callee = callee;
+      this.arguments = arguments;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Object function = callee.execute(environment);
+      Object[] values = new Object[arguments.length];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = arguments[i].execute(environment);
+      }
+
+      return cache.check(function, values.length, paren)
+          .call(interpreter, values);
+    }
+  }
+
+  // obj.method(...), which calls the method without binding it first.
+  static final class Invoke extends ExprNode {
+    private final Interpreter interpreter;
+    private final Token paren;
+    private final ExprNode object;
+    private final Token name;
+    private final ExprNode[] arguments;
+    private final PropertyCache cache = new PropertyCache();
+    private final CallCache callCache = new CallCache();
+
+    Invoke(Interpreter interpreter, Token paren, ExprNode object,
+           Token name, ExprNode[] arguments) {
+      this.interpreter = interpreter;
+      this.paren = paren;
+      this.object = object;
+      this.name = name;
+      this.arguments = arguments;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      LoxInstance receiver = Interpreter.instanceForGet(
+          object.execute(environment), name);
+      Object callee = cache.find(receiver, name);
+
+      int count = arguments.length;
+      if (count > 4) {
+        Object[] values = new Object[count];
+        for (int i = 0; i < count; i++) {
+          values[i] = arguments[i].execute(environment);
+        }
+
+        return Interpreter.callProperty(interpreter, receiver,
+            callCache.check(callee, count, paren), values);
+      }
+
+      Object a = count > 0 ? arguments[0].execute(environment) : null;
+      Object b = count > 1 ? arguments[1].execute(environment) : null;
+      Object c = count > 2 ? arguments[2].execute(environment) : null;
+      Object d = count > 3 ? arguments[3].execute(environment) : null;
+      return Interpreter.callProperty(interpreter, receiver,
+          callCache.check(callee, count, paren), count, a, b, c, d);
+    }
+  }
+
+  // Classes.
+
+  static final class GetProperty extends ExprNode {
+    private final ExprNode object;
+    private final Token name;
+    private final PropertyCache cache = new PropertyCache();
+
+    GetProperty(ExprNode object, Token name) {
+      this.object = object;
+      this.name = name;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Object instance = object.execute(environment);
+      return cache.get(Interpreter.instanceForGet(instance, name), name);
+    }
+  }
+
+  static final class SetProperty extends ExprNode {
+    private final ExprNode object;
+    private final Token name;
+    private final ExprNode value;
+    private final PropertyCache cache = new PropertyCache();
+
+    SetProperty(ExprNode object, Token name, ExprNode value) {
+      this.object = object;
+      this.name = name;
+      this.value = value;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Object instance = object.execute(environment);
+      if (!(instance instanceof LoxInstance)) {
+        throw new RuntimeError(name, "Only instances have fields.");
+      }
+
+      Object result = value.execute(environment);
+      cache.set((LoxInstance)instance, name, result);
+      return result;
+    }
+  }
+
+  static final class Super extends ExprNode {
+    private final int depth;
+    private final int slot;
+    private final ExprNode receiver;
+    private final Token method;
+    private final SuperCache cache = new SuperCache();
+
+    Super(int depth, int slot, ExprNode receiver, Token method) {
+      this.depth = depth;
+      this.slot = slot;
+      this.receiver = receiver;
+      this.method = method;
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      LoxClass superclass =
+          (LoxClass)((Cell)environment.getAt(depth, slot)).value;
+      LoxInstance object = (LoxInstance)receiver.execute(environment);
+
+      return cache.find(superclass, method).bind(object);
+    }
+  }
+}
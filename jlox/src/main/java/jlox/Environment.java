@@ -1,48 +1,57 @@
 package jlox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.List;
 
+// Holds the locals of one scope. The resolver hands out slot indices in
+// declaration order and records how many a scope needs, so define() only
+// has to append and every resolved access is a plain array index. Globals
+// live in Interpreter.globals.
 class Environment {
-  final Environment enclosing;
-  private final Map<String, Object> values = new HashMap<>();
+  Environment enclosing;
+  private Object[] values;
+  private int count = 0;
+  // How many slots the current scope uses, which clear() empties.
+  private int slots;
 
-  Environment() {
-    enclosing = null;
-  }
-
-  Environment(Environment enclosing) {
+  Environment(Environment enclosing, int slots) {
     this.enclosing = enclosing;
+    this.values = new Object[slots];
+    this.slots = slots;
   }
 
-  Object get(Token name) {
-    if (values.containsKey(name.lexeme)) {
-      return values.get(name.lexeme);
-    }
-
-    if (enclosing != null) return enclosing.get(name);
-
-    throw new RuntimeError(name,
-        "Undefined variable '" + name.lexeme + "'.");
-  }
+  // Builds the environment a closure keeps, which holds just the cells
+  // of the variables it captures, looked up from the scope declaring it.
+  // Each call's frame is chained to it.
+  static Environment capture(Environment scope,
+                             List<Expr.Variable> captures) {
+    if (captures.isEmpty()) return null;
 
-  void assign(Token name, Object value) {
-    if (values.containsKey(name.lexeme)) {
-      values.put(name.lexeme, value);
-      return;
+    Environment closure = new Environment(null, captures.size());
+    for (Expr.Variable variable : captures) {
+      closure.define(scope.getAt(variable.depth, variable.slot));
     }
+    return closure;
+  }
 
-    if (enclosing != null) {
-      enclosing.assign(name, value);
-      return;
-    }
+  // Readies a pooled environment for another scope; see
+  // Interpreter.acquire(). Slots are overwritten as they are defined.
+  void reset(Environment enclosing, int slots) {
+    this.enclosing = enclosing;
+    if (values.length < slots) values = new Object[slots];
+    this.slots = slots;
+    count = 0;
+  }
 
-    throw new RuntimeError(name,
-        "Undefined variable '" + name.lexeme + "'.");
+  // Lets go of a pooled environment's values once its scope has exited,
+  // so that it keeps nothing reachable while it waits to be reused.
+  void clear() {
+    Arrays.fill(values, 0, slots, null);
+    enclosing = null;
   }
 
-  void define(String name, Object value) {
-    values.put(name, value);
+  void define(Object value) {
+    values[count++] = value;
   }
 
   Environment ancestor(int distance) {
@@ -54,11 +63,19 @@ class Environment {
     return environment;
   }
 
-  Object getAt(int distance, String name) {
-    return ancestor(distance).values.get(name);
+  Object get(int slot) {
+    return values[slot];
+  }
+
+  void set(int slot, Object value) {
+    values[slot] = value;
+  }
+
+  Object getAt(int distance, int slot) {
+    return ancestor(distance).values[slot];
   }
 
-  void assignAt(int distance, Token name, Object value) {
-    ancestor(distance).values.put(name.lexeme, value);
+  void assignAt(int distance, int slot, Object value) {
+    ancestor(distance).values[slot] = value;
   }
 }
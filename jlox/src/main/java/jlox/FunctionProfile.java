@@ -0,0 +1,67 @@
+package jlox;
+
+// Execution state shared by every closure created from one function
+// declaration: the counters tiering decisions are made on, and the
+// compiled code once there is some. Everything but the installed code is
+// only touched by the interpreter's thread.
+class FunctionProfile {
+  final Stmt.Function declaration;
+  // Null when functions are not tiered up.
+  private final TieredCompiler tiers;
+
+  int invocations = 0;
+  int backEdges = 0;
+  // Set once a compile has been requested, and left set if it fails.
+  private boolean queued = false;
+
+  // Written by the compiler thread; null while interpreted.
+  private volatile JvmFunction code;
+  private volatile TieredCompiler.Speculation speculation;
+
+  FunctionProfile(Stmt.Function declaration, TieredCompiler tiers) {
+    this.declaration = declaration;
+    this.tiers = tiers;
+  }
+
+  // Returns the compiled code to run, or null to interpret this call.
+  JvmFunction enter() {
+    JvmFunction code = this.code;
+    if (code == null && tiers != null && !queued &&
+        ++invocations >= TieredCompiler.INVOCATION_THRESHOLD) {
+      queue();
+    }
+
+    return code;
+  }
+
+  void backEdge() {
+    if (tiers != null && !queued &&
+        ++backEdges >= TieredCompiler.BACK_EDGE_THRESHOLD) {
+      queue();
+    }
+  }
+
+  private void queue() {
+    queued = true;
+    tiers.submit(this);
+  }
+
+  void install(JvmFunction code,
+               TieredCompiler.Speculation speculation) {
+    this.speculation = speculation;
+    this.code = code;
+  }
+
+  // Drops the code compiled under the broken speculation and starts
+  // profiling again. Returns false if that code was already replaced.
+  boolean deoptimize(TieredCompiler.Speculation broken) {
+    if (speculation != broken) return false;
+
+    code = null;
+    speculation = null;
+    invocations = 0;
+    backEdges = 0;
+    queued = false;
+    return true;
+  }
+}
@@ -1,24 +1,64 @@
 package jlox;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 class Interpreter implements Expr.Visitor<Object>,
-                             Stmt.Visitor<Void> {
-  final Environment globals = new Environment();
-  private Environment environment = globals;
-  private final Map<Expr, Integer> locals = new HashMap<>();
-
-  Interpreter() {
-    globals.define("clock", new LoxCallable() {
+                             Stmt.Visitor<Object> {
+  // One cell per global name, made on first mention and never removed,
+  // so each variable expression only has to look its name up once. The
+  // compiler thread makes cells too when running tiered.
+  private final Map<String, Cell> globals = new ConcurrentHashMap<>();
+  // Null while executing top-level code, where declarations are globals.
+  private Environment environment = null;
+  // Set when running through the closure compiler instead of the visitor.
+  private final ClosureCompiler compiler;
+  // Set when every function is compiled to JVM bytecode up front.
+  private final JvmCompiler jit;
+  // Set when hot functions are compiled in the background instead.
+  private final TieredCompiler tiers;
+  private final Map<Stmt.Function, FunctionProfile> profiles =
+      new IdentityHashMap<>();
+  // The profile of the function being interpreted, which loops report
+  // their back-edges to.
+  FunctionProfile executing = null;
+  // Environments for calls and top-level blocks, reused in stack order.
+  // Closures keep only the cells they capture, so no frame is used after
+  // it exits.
+  private Environment[] frames = new Environment[64];
+  private int frameCount = 0;
+  // Lox calls in progress, limited to maxDepth so that runaway recursion
+  // is a Lox error instead of a StackOverflowError.
+  int depth = 0;
+  private final int maxDepth;
+
+  enum Engine { TREE, CLOSURE, JVM, TIERED }
+
+  // What executing a statement returns when control just falls through
+  // to the next one. Anything else is the value of a return statement
+  // that is unwinding to its function, so returning needs no exception.
+  static final Object NORMAL = new Object();
+
+  // What a global's cell holds until the global is defined.
+  static final Object UNDEFINED = new Object();
+
+  Interpreter(Engine engine, boolean traceTiers, int maxDepth) {
+    this.maxDepth = maxDepth;
+    compiler = engine == Engine.CLOSURE ? new ClosureCompiler(this) : null;
+    jit = engine == Engine.JVM ? new JvmCompiler(this) : null;
+    tiers = engine == Engine.TIERED
+        ? new TieredCompiler(this, traceTiers) : null;
+
+    putGlobal("clock", new LoxCallable() {
       @Override
       public int arity() { return 0; }
 
       @Override
-      public Object call(Interpreter interpreter,
-                         List<Object> arguments) {
+      public Object call(Interpreter interpreter, Object[] arguments) {
         return (double)System.currentTimeMillis() / 1000.0;
       }
 
@@ -27,8 +67,43 @@ class Interpreter implements Expr.Visitor<Object>,
     });
   }
 
+  // Returns an environment for a scope being entered. The caller has to
+  // release() it when the scope exits, even by an exception.
+  Environment acquire(Environment enclosing, int slots) {
+    if (frameCount == frames.length) {
+      frames = Arrays.copyOf(frames, frameCount * 2);
+    }
+
+    Environment frame = frames[frameCount];
+    if (frame == null) {
+      frame = new Environment(enclosing, slots);
+      frames[frameCount] = frame;
+    } else {
+      frame.reset(enclosing, slots);
+    }
+    frameCount++;
+    return frame;
+  }
+
+  void release() {
+    frames[--frameCount].clear();
+  }
+
+  // Called by LoxFunction on entry; it decrements depth on the way out.
+  void enterCall(Token name) {
+    if (depth == maxDepth) throw new RuntimeError(name, "Stack overflow.");
+    depth++;
+  }
+
   void interpret(List<Stmt> statements) {
     try {
+      if (compiler != null) {
+        for (ClosureCompiler.StmtNode node : compiler.compile(statements)) {
+          node.execute(null);
+        }
+        return;
+      }
+
       for (Stmt statement : statements) {
         execute(statement);
       }
@@ -41,36 +116,48 @@ class Interpreter implements Expr.Visitor<Object>,
     return expr.accept(this);
   }
 
-  private void execute(Stmt stmt) {
-    stmt.accept(this);
-  }
-
-  void resolve(Expr expr, int depth) {
-    locals.put(expr, depth);
+  private Object execute(Stmt stmt) {
+    return stmt.accept(this);
   }
 
-  void executeBlock(List<Stmt> statements,
-                    Environment environment) {
+  Object executeBlock(List<Stmt> statements,
+                      Environment environment) {
     Environment previous = this.environment;
     try {
       this.environment = environment;
 
       for (Stmt statement : statements) {
-        execute(statement);
+        Object completion = execute(statement);
+        if (completion != NORMAL) return completion;
       }
+      return NORMAL;
     } finally {
       this.environment = previous;
     }
   }
 
   @Override
-  public Void visitBlockStmt(Stmt.Block stmt) {
-    executeBlock(stmt.statements, new Environment(environment));
-    return null;
+  public Object visitBlockStmt(Stmt.Block stmt) {
+    // Only an outermost block at the top level has an environment of its
+    // own. Other blocks' locals are in their function's frame.
+    if (stmt.slots == 0) {
+      for (Stmt statement : stmt.statements) {
+        Object completion = execute(statement);
+        if (completion != NORMAL) return completion;
+      }
+      return NORMAL;
+    }
+
+    Environment frame = acquire(environment, stmt.slots);
+    try {
+      return executeBlock(stmt.statements, frame);
+    } finally {
+      release();
+    }
   }
 
   @Override
-  public Void visitClassStmt(Stmt.Class stmt) {
+  public Object visitClassStmt(Stmt.Class stmt) {
     Object superclass = null;
     if (stmt.superclass != null) {
       superclass = evaluate(stmt.superclass);
@@ -80,16 +167,19 @@ class Interpreter implements Expr.Visitor<Object>,
       }
     }
 
-    environment.define(stmt.name.lexeme, null);
+    // The methods may capture the class's own name, so its cell has to
+    // exist before they are created.
+    Cell cell = stmt.isCaptured ? defineCell(stmt.slot) : null;
 
+    Environment enclosing = environment;
     if (stmt.superclass != null) {
-      environment = new Environment(environment);
-      environment.define("super", superclass);
+      environment = new Environment(environment, 1);
+      environment.define(new Cell(superclass));
     }
 
     Map<String, LoxFunction> methods = new HashMap<>();
     for (Stmt.Function method : stmt.methods) {
-      LoxFunction function = new LoxFunction(method, environment,
+      LoxFunction function = function(method,
           method.name.lexeme.equals("init"));
       methods.put(method.name.lexeme, function);
     }
@@ -97,81 +187,188 @@ class Interpreter implements Expr.Visitor<Object>,
     LoxClass klass = new LoxClass(stmt.name.lexeme,
         (LoxClass)superclass, methods);
 
-    if (superclass != null) {
-      environment = environment.enclosing;
-    }
+    environment = enclosing;
 
-    environment.assign(stmt.name, klass);
-    return null;
+    // Methods only look the class up when called, so it is safe to
+    // define the name once the class is complete.
+    if (cell != null) {
+      cell.value = klass;
+    } else {
+      define(stmt.name, stmt.slot, klass);
+    }
+    return NORMAL;
   }
 
   @Override
-  public Void visitExpressionStmt(Stmt.Expression stmt) {
+  public Object visitExpressionStmt(Stmt.Expression stmt) {
     evaluate(stmt.expression);
-    return null;
+    return NORMAL;
   }
 
   @Override
-  public Void visitFunctionStmt(Stmt.Function stmt) {
-    LoxFunction function = new LoxFunction(stmt, environment,
-                                           false);
-    environment.define(stmt.name.lexeme, function);
-    return null;
+  public Object visitForStmt(Stmt.For stmt) {
+    if (stmt.slots == 0) return loop(stmt);
+
+    // An outermost loop at the top level, like a block.
+    Environment previous = environment;
+    environment = acquire(environment, stmt.slots);
+    try {
+      return loop(stmt);
+    } finally {
+      environment = previous;
+      release();
+    }
+  }
+
+  private Object loop(Stmt.For stmt) {
+    if (stmt.isCounted) {
+      Stmt.Var counter = (Stmt.Var)stmt.initializer;
+      Object start = evaluate(counter.initializer);
+      environment.set(counter.slot, start);
+      if (start instanceof Double) {
+        return countedLoop(stmt, counter.slot, (double)start);
+      }
+    } else if (stmt.initializer != null) {
+      execute(stmt.initializer);
+    }
+
+    while (stmt.condition == null || isTruthy(evaluate(stmt.condition))) {
+      Object completion = execute(stmt.body);
+      if (completion != NORMAL) return completion;
+      if (stmt.increment != null) evaluate(stmt.increment);
+      if (executing != null) executing.backEdge();
+    }
+    return NORMAL;
+  }
+
+  // The loop variable is kept in a double, which is only stored to its
+  // slot for the body or the bound to read.
+  private Object countedLoop(Stmt.For stmt, int slot, double counter) {
+    Expr.Binary condition = (Expr.Binary)stmt.condition;
+    Token operator = condition.operator;
+    while (true) {
+      if (stmt.readsCounter) environment.set(slot, counter);
+
+      Object bound = evaluate(condition.right);
+      if (!(bound instanceof Double)) {
+        throw new RuntimeError(operator, "Operands must be numbers.");
+      }
+      if (!compare(operator.type, counter, (double)bound)) return NORMAL;
+
+      Object completion = execute(stmt.body);
+      if (completion != NORMAL) return completion;
+      counter += stmt.step;
+      if (executing != null) executing.backEdge();
+    }
+  }
+
+  static boolean compare(TokenType operator, double a, double b) {
+    switch (operator) {
+      case GREATER: return a > b;
+      case GREATER_EQUAL: return a >= b;
+      case LESS: return a < b;
+      default: return a <= b;
+    }
   }
 
   @Override
-  public Void visitIfStmt(Stmt.If stmt) {
+  public Object visitFunctionStmt(Stmt.Function stmt) {
+    // A local function that calls itself captures its own cell.
+    if (stmt.isCaptured) {
+      Cell cell = defineCell(stmt.slot);
+      cell.value = function(stmt, false);
+    } else {
+      define(stmt.name, stmt.slot, function(stmt, false));
+    }
+    return NORMAL;
+  }
+
+  private LoxFunction function(Stmt.Function declaration,
+                               boolean isInitializer) {
+    return new LoxFunction(declaration,
+        Environment.capture(environment, declaration.captures),
+        isInitializer, null, profile(declaration));
+  }
+
+  private Cell defineCell(int slot) {
+    Cell cell = new Cell(null);
+    environment.set(slot, cell);
+    return cell;
+  }
+
+  private FunctionProfile profile(Stmt.Function declaration) {
+    if (jit == null && tiers == null) return null;
+
+    FunctionProfile profile = profiles.get(declaration);
+    if (profile == null) {
+      profile = new FunctionProfile(declaration, tiers);
+      if (jit != null) profile.install(jit.compile(declaration, null), null);
+      profiles.put(declaration, profile);
+    }
+
+    return profile;
+  }
+
+  @Override
+  public Object visitIfStmt(Stmt.If stmt) {
     if (isTruthy(evaluate(stmt.condition))) {
-      execute(stmt.thenBranch);
+      return execute(stmt.thenBranch);
     } else if (stmt.elseBranch != null) {
-      execute(stmt.elseBranch);
+      return execute(stmt.elseBranch);
     }
-    return null;
+    return NORMAL;
   }
 
   @Override
-  public Void visitPrintStmt(Stmt.Print stmt) {
+  public Object visitPrintStmt(Stmt.Print stmt) {
     Object value = evaluate(stmt.expression);
     System.out.println(stringify(value));
-    return null;
+    return NORMAL;
   }
 
   @Override
-  public Void visitReturnStmt(Stmt.Return stmt) {
+  public Object visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.isTailCall) return call((Expr.Call)stmt.value, true);
+
     Object value = null;
     if (stmt.value != null) value = evaluate(stmt.value);
 
-    throw new Return(value);
+    return value;
   }
 
   @Override
-  public Void visitVarStmt(Stmt.Var stmt) {
+  public Object visitVarStmt(Stmt.Var stmt) {
     Object value = null;
     if (stmt.initializer != null) {
       value = evaluate(stmt.initializer);
     }
 
-    environment.define(stmt.name.lexeme, value);
-    return null;
+    define(stmt.name, stmt.slot, stmt.isCaptured ? new Cell(value) : value);
+    return NORMAL;
   }
 
   @Override
-  public Void visitWhileStmt(Stmt.While stmt) {
+  public Object visitWhileStmt(Stmt.While stmt) {
     while (isTruthy(evaluate(stmt.condition))) {
-      execute(stmt.body);
+      Object completion = execute(stmt.body);
+      if (completion != NORMAL) return completion;
+      if (executing != null) executing.backEdge();
     }
-    return null;
+    return NORMAL;
   }
 
   @Override
   public Object visitAssignExpr(Expr.Assign expr) {
     Object value = evaluate(expr.value);
 
-    Integer distance = locals.get(expr);
-    if (distance != null) {
-      environment.assignAt(distance, expr.name, value);
+    if (expr.inCell) {
+      ((Cell)environment.getAt(expr.depth, expr.slot)).value = value;
+    } else if (expr.depth != -1) {
+      environment.assignAt(expr.depth, expr.slot, value);
     } else {
-      globals.assign(expr.name, value);
+      if (expr.global == null) expr.global = globalCell(expr.name.lexeme);
+      if (expr.global.value == UNDEFINED) throw undefined(expr.name);
+      setGlobal(expr.global, expr.name.lexeme, value);
     }
 
     return value;
@@ -225,37 +422,104 @@ class Interpreter implements Expr.Visitor<Object>,
 
   @Override
   public Object visitCallExpr(Expr.Call expr) {
-    Object callee = evaluate(expr.callee);
+    return call(expr, false);
+  }
+
+  // A tail call to a Lox function is not made here but returned as a
+  // TailCall, for LoxFunction to run once the caller has returned.
+  private Object call(Expr.Call expr, boolean isTailCall) {
+    // For obj.method(...), look the method up without binding it and
+    // pass the receiver in when calling it.
+    Object callee;
+    LoxInstance receiver = null;
+    if (expr.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get)expr.callee;
+      receiver = instanceForGet(evaluate(get.object), get.name);
+      callee = get.cache.find(receiver, get.name);
+    } else {
+      callee = evaluate(expr.callee);
+    }
+
+    List<Expr> arguments = expr.arguments;
+    int count = arguments.size();
+    if (isTailCall || count > 4) {
+      Object[] values = new Object[count];
+      for (int i = 0; i < count; i++) {
+        values[i] = evaluate(arguments.get(i));
+      }
+
+      LoxCallable function = expr.cache.check(callee, count, expr.paren);
+      if (isTailCall) return tailCall(this, receiver, function, values);
+      return callProperty(this, receiver, function, values);
+    }
 
-    List<Object> arguments = new ArrayList<>();
-    for (Expr argument : expr.arguments) {
-      arguments.add(evaluate(argument));
+    Object a = count > 0 ? evaluate(arguments.get(0)) : null;
+    Object b = count > 1 ? evaluate(arguments.get(1)) : null;
+    Object c = count > 2 ? evaluate(arguments.get(2)) : null;
+    Object d = count > 3 ? evaluate(arguments.get(3)) : null;
+    return callProperty(this, receiver,
+        expr.cache.check(callee, count, expr.paren), count, a, b, c, d);
+  }
+
+  // Calls a callee that may be a method found by PropertyCache.find().
+  static Object callProperty(Interpreter interpreter, LoxInstance receiver,
+                             LoxCallable function, Object[] arguments) {
+    if (function instanceof LoxFunction &&
+        ((LoxFunction)function).isUnboundMethod()) {
+      return ((LoxFunction)function).invoke(interpreter, receiver,
+                                            arguments);
     }
 
-    if (!(callee instanceof LoxCallable)) {
-      throw new RuntimeError(expr.paren,
-          "Can only call functions and classes.");
+    return function.call(interpreter, arguments);
+  }
+
+  // Like callProperty(), for a call in tail position. Calls to anything
+  // but a Lox function are made right away.
+  static Object tailCall(Interpreter interpreter, LoxInstance receiver,
+                         LoxCallable function, Object[] arguments) {
+    if (function instanceof LoxFunction) {
+      return ((LoxFunction)function).tailCall(receiver, arguments);
     }
 
-    LoxCallable function = (LoxCallable)callee;
-    if (arguments.size() != function.arity()) {
-      throw new RuntimeError(expr.paren, "Expected " +
-          function.arity() + " arguments but got " +
-          arguments.size() + ".");
+    return function.call(interpreter, arguments);
+  }
+
+  // The same for calls with at most four arguments, which are passed
+  // through the entry point for their count. Unused ones are null.
+  static Object callProperty(Interpreter interpreter, LoxInstance receiver,
+                             LoxCallable function, int count,
+                             Object a, Object b, Object c, Object d) {
+    if (function instanceof LoxFunction &&
+        ((LoxFunction)function).isUnboundMethod()) {
+      LoxFunction method = (LoxFunction)function;
+      switch (count) {
+        case 0: return method.invoke0(interpreter, receiver);
+        case 1: return method.invoke1(interpreter, receiver, a);
+        case 2: return method.invoke2(interpreter, receiver, a, b);
+        case 3: return method.invoke3(interpreter, receiver, a, b, c);
+        default: return method.invoke4(interpreter, receiver, a, b, c, d);
+      }
     }
 
-    return function.call(this, arguments);
+    switch (count) {
+      case 0: return function.call0(interpreter);
+      case 1: return function.call1(interpreter, a);
+      case 2: return function.call2(interpreter, a, b);
+      case 3: return function.call3(interpreter, a, b, c);
+      default: return function.call4(interpreter, a, b, c, d);
+    }
   }
 
   @Override
   public Object visitGetExpr(Expr.Get expr) {
     Object object = evaluate(expr.object);
-    if (object instanceof LoxInstance) {
-      return ((LoxInstance) object).get(expr.name);
-    }
+    return expr.cache.get(instanceForGet(object, expr.name), expr.name);
+  }
 
-    throw new RuntimeError(expr.name,
-        "Only instances have properties.");
+  static LoxInstance instanceForGet(Object object, Token name) {
+    if (object instanceof LoxInstance) return (LoxInstance)object;
+
+    throw new RuntimeError(name, "Only instances have properties.");
   }
 
   @Override
@@ -291,32 +555,23 @@ class Interpreter implements Expr.Visitor<Object>,
     }
 
     Object value = evaluate(expr.value);
-    ((LoxInstance)object).set(expr.name, value);
+    expr.cache.set((LoxInstance)object, expr.name, value);
     return value;
   }
 
   @Override
   public Object visitSuperExpr(Expr.Super expr) {
-    int distance = locals.get(expr);
-    LoxClass superclass = (LoxClass)environment.getAt(
-        distance, "super");
-
-    LoxInstance object = (LoxInstance)environment.getAt(
-        distance - 1, "this");
-
-    LoxFunction method = superclass.findMethod(expr.method.lexeme);
-
-    if (method == null) {
-      throw new RuntimeError(expr.method,
-          "Undefined property '" + expr.method.lexeme + "'.");
-    }
+    LoxClass superclass = (LoxClass)((Cell)environment.getAt(
+        expr.depth, expr.slot)).value;
+    LoxInstance object = (LoxInstance)evaluate(expr.receiver);
 
-    return method.bind(object);
+    return expr.cache.find(superclass, expr.method).bind(object);
   }
 
   @Override
   public Object visitThisExpr(Expr.This expr) {
-    return lookUpVariable(expr.keyword, expr);
+    Object value = environment.getAt(expr.depth, expr.slot);
+    return expr.inCell ? ((Cell)value).value : value;
   }
 
   @Override
@@ -337,44 +592,71 @@ class Interpreter implements Expr.Visitor<Object>,
 
   @Override
   public Object visitVariableExpr(Expr.Variable expr) {
-    return lookUpVariable(expr.name, expr);
+    if (expr.depth != -1) {
+      Object value = environment.getAt(expr.depth, expr.slot);
+      return expr.inCell ? ((Cell)value).value : value;
+    }
+
+    if (expr.global == null) expr.global = globalCell(expr.name.lexeme);
+    Object value = expr.global.value;
+    if (value == UNDEFINED) throw undefined(expr.name);
+    return value;
   }
 
-  private Object lookUpVariable(Token name, Expr expr) {
-    Integer distance = locals.get(expr);
-    if (distance != null) {
-      return environment.getAt(distance, name.lexeme);
+  private void define(Token name, int slot, Object value) {
+    if (environment == null) {
+      putGlobal(name.lexeme, value);
     } else {
-      return globals.get(name);
+      environment.set(slot, value);
     }
   }
 
-  private void checkNumberOperand(Token operator, Object operand) {
+  Cell globalCell(String name) {
+    return globals.computeIfAbsent(name, key -> new Cell(UNDEFINED));
+  }
+
+  static RuntimeError undefined(Token name) {
+    return new RuntimeError(name,
+        "Undefined variable '" + name.lexeme + "'.");
+  }
+
+  void putGlobal(String name, Object value) {
+    setGlobal(globalCell(name), name, value);
+  }
+
+  // Every store to a global goes through here, so that compiled code
+  // which assumed the old value can be thrown away.
+  void setGlobal(Cell cell, String name, Object value) {
+    cell.value = value;
+    if (tiers != null) tiers.globalChanged(name);
+  }
+
+  static void checkNumberOperand(Token operator, Object operand) {
     if (operand instanceof Double) return;
     throw new RuntimeError(operator, "Operand must be a number.");
   }
 
-  private void checkNumberOperands(Token operator,
-                                   Object left, Object right) {
+  static void checkNumberOperands(Token operator,
+                                  Object left, Object right) {
     if (left instanceof Double && right instanceof Double) return;
 
     throw new RuntimeError(operator, "Operands must be numbers.");
   }
 
-  private boolean isTruthy(Object object) {
+  static boolean isTruthy(Object object) {
     if (object == null) return false;
     if (object instanceof Boolean) return (boolean)object;
     return true;
   }
 
-  private boolean isEqual(Object a, Object b) {
+  static boolean isEqual(Object a, Object b) {
     if (a == null && b == null) return true;
     if (a == null) return false;
 
     return a.equals(b);
   }
 
-  private String stringify(Object object) {
+  static String stringify(Object object) {
     if (object == null) return "nil";
 
     if (object instanceof Double) {
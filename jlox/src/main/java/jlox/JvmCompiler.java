@@ -0,0 +1,578 @@
+package jlox;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import jlox.classfile.ClassWriter;
+import jlox.classfile.ClassWriter.Label;
+import jlox.classfile.ClassWriter.MethodWriter;
+
+import static jlox.classfile.Opcodes.*;
+
+// Translates a function declaration into a JVM class implementing
+// JvmFunction and loads it as a hidden class, so HotSpot compiles Lox
+// code like any other Java method. Each slot of the function's frame
+// becomes a JVM local; only variables of enclosing functions go through
+// the cells the closure captured. Values stay boxed and every operator
+// calls into JvmRuntime, which HotSpot inlines.
+//
+// Bodies that declare functions or classes are not compiled: their
+// locals may be captured, so they need cells. compile() returns null for
+// those and the function is interpreted.
+//
+// Globals are read and written through their cells, which are passed in
+// as constants. Given a speculation, global reads go through its cache
+// instead; see TieredCompiler.
+class JvmCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  private static final String RUNTIME = "jlox/JvmRuntime";
+  private static final String OBJECT = "Ljava/lang/Object;";
+  private static final String TOKEN = "Ljlox/Token;";
+  private static final String CELL = "Ljlox/Cell;";
+  private static final String CALL_DESCRIPTOR =
+      "(Ljlox/Interpreter;Ljlox/Environment;Ljlox/LoxInstance;" +
+      "[" + OBJECT + ")" + OBJECT;
+
+  // The JVM locals of call(): "this" and its four parameters.
+  private static final int INTERPRETER = 1;
+  private static final int CLOSURE = 2;
+  private static final int RECEIVER = 3;
+  private static final int ARGUMENTS = 4;
+  private static final int FIRST_LOCAL = 5;
+
+  private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+  private final Interpreter interpreter;
+
+  private static class Unsupported extends RuntimeException {
+    Unsupported() {
+      super(null, null, false, false);
+    }
+  }
+
+  // State for the function being compiled.
+  private String className;
+  private MethodWriter code;
+  private List<Object> constants;
+  private Map<Object, Integer> constantIndices;
+  private TieredCompiler.Speculation speculation;
+  // The index into the speculation's values of each global read.
+  private Map<String, Integer> speculated;
+
+  JvmCompiler(Interpreter interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  JvmFunction compile(Stmt.Function function,
+                      TieredCompiler.Speculation speculation) {
+    this.speculation = speculation;
+    this.speculated = new HashMap<>();
+    try {
+      JvmFunction result = generate(function);
+      if (speculation != null) {
+        speculation.values = new Object[speculated.size()];
+      }
+      return result;
+    } catch (Unsupported | IllegalStateException | LinkageError |
+             ReflectiveOperationException error) {
+      return null;
+    } finally {
+      this.speculation = null;
+      this.speculated = null;
+    }
+  }
+
+  private JvmFunction generate(Stmt.Function function)
+      throws ReflectiveOperationException {
+    className = "jlox/Function$" + function.name.lexeme;
+    ClassWriter writer = new ClassWriter(className, "java/lang/Object",
+        "jlox/JvmFunction");
+    writer.field(ClassWriter.ACC_PRIVATE | ClassWriter.ACC_FINAL,
+        "constants", "[" + OBJECT);
+
+    MethodWriter init = writer.method(ClassWriter.ACC_PUBLIC, "<init>",
+        "([" + OBJECT + ")V");
+    init.varInsn(ALOAD, 0);
+    init.methodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+    init.varInsn(ALOAD, 0);
+    init.varInsn(ALOAD, 1);
+    init.fieldInsn(PUTFIELD, className, "constants", "[" + OBJECT);
+    init.op(RETURN);
+
+    code = writer.method(ClassWriter.ACC_PUBLIC, "call", CALL_DESCRIPTOR);
+    constants = new ArrayList<>();
+    constantIndices = new IdentityHashMap<>();
+
+    try {
+      int slot = FIRST_LOCAL;
+      if (function.isMethod) {
+        code.varInsn(ALOAD, RECEIVER);
+        code.varInsn(ASTORE, slot++);
+      }
+      for (int i = 0; i < function.params.size(); i++) {
+        code.varInsn(ALOAD, ARGUMENTS);
+        code.iconst(i);
+        code.op(AALOAD);
+        code.varInsn(ASTORE, slot++);
+      }
+
+      for (Stmt statement : function.body) {
+        statement.accept(this);
+      }
+
+      code.op(ACONST_NULL);
+      code.op(ARETURN);
+
+      Class<?> type = lookup.defineHiddenClass(writer.toByteArray(), true)
+          .lookupClass();
+      return (JvmFunction)type.getConstructor(Object[].class)
+          .newInstance((Object)constants.toArray());
+    } finally {
+      code = null;
+      constants = null;
+      constantIndices = null;
+    }
+  }
+
+  private void constant(Object value, String type) {
+    Integer index = constantIndices.get(value);
+    if (index == null) {
+      index = constants.size();
+      constants.add(value);
+      constantIndices.put(value, index);
+    }
+
+    code.varInsn(ALOAD, 0);
+    code.fieldInsn(GETFIELD, className, "constants", "[" + OBJECT);
+    code.iconst(index);
+    code.op(AALOAD);
+    if (type != null) code.typeInsn(CHECKCAST, type);
+  }
+
+  private void token(Token token) {
+    constant(token, "jlox/Token");
+  }
+
+  private void globalCell(Token name) {
+    constant(interpreter.globalCell(name.lexeme), "jlox/Cell");
+  }
+
+  private void runtime(String name, String descriptor) {
+    code.methodInsn(INVOKESTATIC, RUNTIME, name, descriptor);
+  }
+
+  private void evaluate(Expr expr) {
+    expr.accept(this);
+  }
+
+  private void getVariable(Token name, int depth, int slot) {
+    if (depth == -1 && speculation != null &&
+        speculation.isStable(name.lexeme)) {
+      Integer index = speculated.get(name.lexeme);
+      if (index == null) {
+        index = speculated.size();
+        speculated.put(name.lexeme, index);
+      }
+
+      constant(speculation, "jlox/TieredCompiler$Speculation");
+      code.iconst(index);
+      globalCell(name);
+      token(name);
+      runtime("stableGlobal", "(Ljlox/TieredCompiler$Speculation;I" +
+          CELL + TOKEN + ")" + OBJECT);
+    } else if (depth == -1) {
+      globalCell(name);
+      token(name);
+      runtime("getGlobal", "(" + CELL + TOKEN + ")" + OBJECT);
+    } else if (depth == 0) {
+      code.varInsn(ALOAD, FIRST_LOCAL + slot);
+    } else {
+      code.varInsn(ALOAD, CLOSURE);
+      code.iconst(slot);
+      runtime("getCaptured", "(Ljlox/Environment;I)" + OBJECT);
+    }
+  }
+
+  // Leaves the value being assigned on the stack.
+  private void setVariable(Token name, int depth, int slot) {
+    if (depth == -1) {
+      code.varInsn(ALOAD, INTERPRETER);
+      globalCell(name);
+      token(name);
+      runtime("setGlobal", "(" + OBJECT + "Ljlox/Interpreter;" + CELL +
+          TOKEN + ")" + OBJECT);
+    } else if (depth == 0) {
+      code.op(DUP);
+      code.varInsn(ASTORE, FIRST_LOCAL + slot);
+    } else {
+      code.varInsn(ALOAD, CLOSURE);
+      code.iconst(slot);
+      runtime("setCaptured", "(" + OBJECT + "Ljlox/Environment;I)" +
+          OBJECT);
+    }
+  }
+
+  // Jumps to the label when the condition is falsey. Comparisons and
+  // logical operators branch directly on their result instead of boxing
+  // it into a Boolean first.
+  private void jumpIfFalse(Expr condition, Label target) {
+    if (condition instanceof Expr.Grouping) {
+      jumpIfFalse(((Expr.Grouping)condition).expression, target);
+      return;
+    }
+
+    if (condition instanceof Expr.Logical) {
+      Expr.Logical logical = (Expr.Logical)condition;
+      if (logical.operator.type == TokenType.AND) {
+        jumpIfFalse(logical.left, target);
+        jumpIfFalse(logical.right, target);
+      } else {
+        Label pass = new Label();
+        jumpIfTrue(logical.left, pass);
+        jumpIfFalse(logical.right, target);
+        code.mark(pass);
+      }
+      return;
+    }
+
+    if (condition instanceof Expr.Unary &&
+        ((Expr.Unary)condition).operator.type == TokenType.BANG) {
+      jumpIfTrue(((Expr.Unary)condition).right, target);
+      return;
+    }
+
+    if (condition instanceof Expr.Binary &&
+        comparison((Expr.Binary)condition)) {
+      code.jump(IFEQ, target);
+      return;
+    }
+
+    evaluate(condition);
+    runtime("isTruthy", "(" + OBJECT + ")Z");
+    code.jump(IFEQ, target);
+  }
+
+  private void jumpIfTrue(Expr condition, Label target) {
+    if (condition instanceof Expr.Binary &&
+        comparison((Expr.Binary)condition)) {
+      code.jump(IFNE, target);
+      return;
+    }
+
+    evaluate(condition);
+    runtime("isTruthy", "(" + OBJECT + ")Z");
+    code.jump(IFNE, target);
+  }
+
+  // Emits a comparison that leaves a JVM boolean on the stack, or returns
+  // false without emitting anything if the operator is not one.
+  private boolean comparison(Expr.Binary expr) {
+    String method;
+    switch (expr.operator.type) {
+      case GREATER: method = "greater"; break;
+      case GREATER_EQUAL: method = "greaterEqual"; break;
+      case LESS: method = "less"; break;
+      case LESS_EQUAL: method = "lessEqual"; break;
+      case EQUAL_EQUAL:
+      case BANG_EQUAL:
+        evaluate(expr.left);
+        evaluate(expr.right);
+        runtime("isEqual", "(" + OBJECT + OBJECT + ")Z");
+        if (expr.operator.type == TokenType.BANG_EQUAL) {
+          code.iconst(1);
+          code.op(IXOR);
+        }
+        return true;
+      default:
+        return false;
+    }
+
+    evaluate(expr.left);
+    evaluate(expr.right);
+    token(expr.operator);
+    runtime(method, "(" + OBJECT + OBJECT + TOKEN + ")Z");
+    return true;
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    for (Stmt statement : stmt.statements) {
+      statement.accept(this);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    throw new Unsupported();
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    evaluate(stmt.expression);
+    code.op(POP);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    throw new Unsupported();
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    Label elseBranch = new Label();
+    jumpIfFalse(stmt.condition, elseBranch);
+    stmt.thenBranch.accept(this);
+
+    if (stmt.elseBranch == null) {
+      code.mark(elseBranch);
+      return null;
+    }
+
+    Label end = new Label();
+    code.jump(GOTO, end);
+    code.mark(elseBranch);
+    stmt.elseBranch.accept(this);
+    code.mark(end);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    evaluate(stmt.expression);
+    runtime("print", "(" + OBJECT + ")V");
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.isTailCall) {
+      call((Expr.Call)stmt.value, true);
+    } else if (stmt.value != null) {
+      evaluate(stmt.value);
+    } else {
+      code.op(ACONST_NULL);
+    }
+
+    code.op(ARETURN);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer != null) {
+      evaluate(stmt.initializer);
+    } else {
+      code.op(ACONST_NULL);
+    }
+
+    code.varInsn(ASTORE, FIRST_LOCAL + stmt.slot);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    Label start = new Label();
+    Label end = new Label();
+    code.mark(start);
+    jumpIfFalse(stmt.condition, end);
+    stmt.body.accept(this);
+    code.jump(GOTO, start);
+    code.mark(end);
+    return null;
+  }
+
+  @Override
+  public Void visitForStmt(Stmt.For stmt) {
+    if (stmt.initializer != null) stmt.initializer.accept(this);
+
+    Label start = new Label();
+    Label end = new Label();
+    code.mark(start);
+    if (stmt.condition != null) jumpIfFalse(stmt.condition, end);
+    stmt.body.accept(this);
+    if (stmt.increment != null) {
+      evaluate(stmt.increment);
+      code.op(POP);
+    }
+    code.jump(GOTO, start);
+    code.mark(end);
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    evaluate(expr.value);
+    setVariable(expr.name, expr.depth, expr.slot);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    if (comparison(expr)) {
+      code.methodInsn(INVOKESTATIC, "java/lang/Boolean", "valueOf",
+          "(Z)Ljava/lang/Boolean;");
+      return null;
+    }
+
+    String method;
+    switch (expr.operator.type) {
+      case PLUS: method = "add"; break;
+      case MINUS: method = "subtract"; break;
+      case STAR: method = "multiply"; break;
+      case SLASH: method = "divide"; break;
+      default: throw new Unsupported();
+    }
+
+    evaluate(expr.left);
+    evaluate(expr.right);
+    token(expr.operator);
+    runtime(method, "(" + OBJECT + OBJECT + TOKEN + ")" + OBJECT);
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    call(expr, false);
+    return null;
+  }
+
+  // A call in tail position goes through tailCall() or tailInvoke(),
+  // which return a TailCall for the caller to run instead of calling.
+  private void call(Expr.Call expr, boolean isTailCall) {
+    Expr.Get get = null;
+    if (expr.callee instanceof Expr.Get) {
+      // Leaves the receiver below the callee, for invoke().
+      get = (Expr.Get)expr.callee;
+      evaluate(get.object);
+      token(get.name);
+      runtime("checkProperties", "(" + OBJECT + TOKEN +
+          ")Ljlox/LoxInstance;");
+      code.op(DUP);
+      constant(get.cache, "jlox/PropertyCache");
+      token(get.name);
+      runtime("findProperty", "(Ljlox/LoxInstance;Ljlox/PropertyCache;" +
+          TOKEN + ")" + OBJECT);
+    } else {
+      evaluate(expr.callee);
+    }
+
+    code.iconst(expr.arguments.size());
+    code.typeInsn(ANEWARRAY, "java/lang/Object");
+    for (int i = 0; i < expr.arguments.size(); i++) {
+      code.op(DUP);
+      code.iconst(i);
+      evaluate(expr.arguments.get(i));
+      code.op(AASTORE);
+    }
+
+    constant(expr.cache, "jlox/CallCache");
+    code.varInsn(ALOAD, INTERPRETER);
+    token(expr.paren);
+    if (get != null) {
+      runtime(isTailCall ? "tailInvoke" : "invoke",
+          "(Ljlox/LoxInstance;" + OBJECT + "[" + OBJECT +
+          "Ljlox/CallCache;Ljlox/Interpreter;" + TOKEN + ")" + OBJECT);
+    } else {
+      runtime(isTailCall ? "tailCall" : "call",
+          "(" + OBJECT + "[" + OBJECT +
+          "Ljlox/CallCache;Ljlox/Interpreter;" + TOKEN + ")" + OBJECT);
+    }
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    evaluate(expr.object);
+    constant(expr.cache, "jlox/PropertyCache");
+    token(expr.name);
+    runtime("getProperty",
+        "(" + OBJECT + "Ljlox/PropertyCache;" + TOKEN + ")" + OBJECT);
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    evaluate(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null) {
+      code.op(ACONST_NULL);
+    } else if (expr.value instanceof Boolean) {
+      code.fieldInsn(GETSTATIC, "java/lang/Boolean",
+          (Boolean)expr.value ? "TRUE" : "FALSE", "Ljava/lang/Boolean;");
+    } else if (expr.value instanceof String) {
+      code.ldc(expr.value);
+    } else {
+      // Shares one boxed Double per literal, as the interpreter does.
+      constant(expr.value, null);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    Label end = new Label();
+    evaluate(expr.left);
+    code.op(DUP);
+    runtime("isTruthy", "(" + OBJECT + ")Z");
+    code.jump(expr.operator.type == TokenType.OR ? IFNE : IFEQ, end);
+    code.op(POP);
+    evaluate(expr.right);
+    code.mark(end);
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    evaluate(expr.object);
+    token(expr.name);
+    runtime("checkFields", "(" + OBJECT + TOKEN + ")Ljlox/LoxInstance;");
+    evaluate(expr.value);
+    constant(expr.cache, "jlox/PropertyCache");
+    token(expr.name);
+    runtime("setProperty", "(Ljlox/LoxInstance;" + OBJECT +
+        "Ljlox/PropertyCache;" + TOKEN + ")" + OBJECT);
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(Expr.Super expr) {
+    getVariable(expr.keyword, expr.depth, expr.slot);
+    evaluate(expr.receiver);
+    constant(expr.cache, "jlox/SuperCache");
+    token(expr.method);
+    runtime("superMethod", "(" + OBJECT + OBJECT + "Ljlox/SuperCache;" +
+        TOKEN + ")" + OBJECT);
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    getVariable(expr.keyword, expr.depth, expr.slot);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    evaluate(expr.right);
+    if (expr.operator.type == TokenType.BANG) {
+      runtime("not", "(" + OBJECT + ")" + OBJECT);
+    } else {
+      token(expr.operator);
+      runtime("negate", "(" + OBJECT + TOKEN + ")" + OBJECT);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    getVariable(expr.name, expr.depth, expr.slot);
+    return null;
+  }
+}
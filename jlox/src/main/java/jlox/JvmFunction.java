@@ -0,0 +1,9 @@
+package jlox;
+
+// Implemented by the hidden classes JvmCompiler generates, one per Lox
+// function declaration. The closure is passed in rather than baked into
+// the class, so every closure created from a declaration shares its code.
+interface JvmFunction {
+  Object call(Interpreter interpreter, Environment closure,
+              LoxInstance receiver, Object[] arguments);
+}
@@ -0,0 +1,179 @@
+package jlox;
+
+// Operations called from code generated by JvmCompiler. They are small
+// and static so HotSpot inlines them into the generated methods; each one
+// raises the same runtime errors as the matching Interpreter visit method.
+final class JvmRuntime {
+  private JvmRuntime() {}
+
+  static boolean isTruthy(Object value) {
+    return Interpreter.isTruthy(value);
+  }
+
+  static Object not(Object value) {
+    return !Interpreter.isTruthy(value);
+  }
+
+  static boolean isEqual(Object a, Object b) {
+    return Interpreter.isEqual(a, b);
+  }
+
+  static Object negate(Object value, Token operator) {
+    Interpreter.checkNumberOperand(operator, value);
+    return -(double)value;
+  }
+
+  static Object add(Object a, Object b, Token operator) {
+    if (a instanceof Double && b instanceof Double) {
+      return (double)a + (double)b;
+    }
+
+    if (a instanceof String && b instanceof String) {
+      return (String)a + (String)b;
+    }
+
+    throw new RuntimeError(operator,
+        "Operands must be two numbers or two strings.");
+  }
+
+  static Object subtract(Object a, Object b, Token operator) {
+    Interpreter.checkNumberOperands(operator, a, b);
+    return (double)a - (double)b;
+  }
+
+  static Object multiply(Object a, Object b, Token operator) {
+    Interpreter.checkNumberOperands(operator, a, b);
+    return (double)a * (double)b;
+  }
+
+  static Object divide(Object a, Object b, Token operator) {
+    Interpreter.checkNumberOperands(operator, a, b);
+    return (double)a / (double)b;
+  }
+
+  static boolean greater(Object a, Object b, Token operator) {
+    Interpreter.checkNumberOperands(operator, a, b);
+    return (double)a > (double)b;
+  }
+
+  static boolean greaterEqual(Object a, Object b, Token operator) {
+    Interpreter.checkNumberOperands(operator, a, b);
+    return (double)a >= (double)b;
+  }
+
+  static boolean less(Object a, Object b, Token operator) {
+    Interpreter.checkNumberOperands(operator, a, b);
+    return (double)a < (double)b;
+  }
+
+  static boolean lessEqual(Object a, Object b, Token operator) {
+    Interpreter.checkNumberOperands(operator, a, b);
+    return (double)a <= (double)b;
+  }
+
+  static Object getGlobal(Cell cell, Token name) {
+    Object value = cell.value;
+    if (value == Interpreter.UNDEFINED) throw Interpreter.undefined(name);
+    return value;
+  }
+
+  static Object setGlobal(Object value, Interpreter interpreter, Cell cell,
+                          Token name) {
+    if (cell.value == Interpreter.UNDEFINED) {
+      throw Interpreter.undefined(name);
+    }
+
+    interpreter.setGlobal(cell, name.lexeme, value);
+    return value;
+  }
+
+  // A global read that speculates the value will not change. It is cached
+  // on first use; TieredCompiler clears the cache when the global is
+  // stored to.
+  static Object stableGlobal(TieredCompiler.Speculation speculation,
+                             int index, Cell cell, Token name) {
+    Object value = speculation.values[index];
+    if (value == null) {
+      value = getGlobal(cell, name);
+      speculation.values[index] = value;
+      speculation.watch(name.lexeme);
+    }
+
+    return value;
+  }
+
+  // A compiled function's captures are all in its closure, which is the
+  // environment passed to it.
+  static Object getCaptured(Environment closure, int slot) {
+    return ((Cell)closure.get(slot)).value;
+  }
+
+  static Object setCaptured(Object value, Environment closure, int slot) {
+    ((Cell)closure.get(slot)).value = value;
+    return value;
+  }
+
+  static Object call(Object callee, Object[] arguments, CallCache cache,
+                     Interpreter interpreter, Token paren) {
+    return cache.check(callee, arguments.length, paren)
+        .call(interpreter, arguments);
+  }
+
+  static Object getProperty(Object object, PropertyCache cache,
+                            Token name) {
+    return cache.get(Interpreter.instanceForGet(object, name), name);
+  }
+
+  static LoxInstance checkProperties(Object object, Token name) {
+    return Interpreter.instanceForGet(object, name);
+  }
+
+  static Object findProperty(LoxInstance object, PropertyCache cache,
+                             Token name) {
+    return cache.find(object, name);
+  }
+
+  static Object invoke(LoxInstance receiver, Object callee,
+                       Object[] arguments, CallCache cache,
+                       Interpreter interpreter, Token paren) {
+    LoxCallable function = cache.check(callee, arguments.length, paren);
+    return Interpreter.callProperty(interpreter, receiver, function,
+                                    arguments);
+  }
+
+  static Object tailCall(Object callee, Object[] arguments,
+                         CallCache cache, Interpreter interpreter,
+                         Token paren) {
+    LoxCallable function = cache.check(callee, arguments.length, paren);
+    return Interpreter.tailCall(interpreter, null, function, arguments);
+  }
+
+  static Object tailInvoke(LoxInstance receiver, Object callee,
+                           Object[] arguments, CallCache cache,
+                           Interpreter interpreter, Token paren) {
+    LoxCallable function = cache.check(callee, arguments.length, paren);
+    return Interpreter.tailCall(interpreter, receiver, function,
+                                arguments);
+  }
+
+  static LoxInstance checkFields(Object object, Token name) {
+    if (object instanceof LoxInstance) return (LoxInstance)object;
+    throw new RuntimeError(name, "Only instances have fields.");
+  }
+
+  static Object setProperty(LoxInstance object, Object value,
+                            PropertyCache cache, Token name) {
+    cache.set(object, name, value);
+    return value;
+  }
+
+  static Object superMethod(Object superclass, Object object,
+                            SuperCache cache, Token method) {
+    return cache.find((LoxClass)superclass, method)
+        .bind((LoxInstance)object);
+  }
+
+  static void print(Object value) {
+    System.out.println(Interpreter.stringify(value));
+  }
+}
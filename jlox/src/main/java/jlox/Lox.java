@@ -3,30 +3,169 @@ package jlox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import jlox.Interpreter.Engine;
+import jlox.vm.VM;
 
 public class Lox {
-  private static final Interpreter interpreter = new Interpreter();
+  static final int DEFAULT_MAX_DEPTH = 1 << 16;
+  // Java stack reserved for each Lox call the interpreter may have to
+  // hold. A tree-walked call takes about 2K while it is still running
+  // in the JVM's own interpreter.
+  private static final long STACK_PER_CALL = 4096;
+  // The most Java stack those engines may reserve, which bounds how deep
+  // --max-depth can go with them.
+  private static final long MAX_STACK = 1L << 30;
+  // How many declarations the front end may get ahead of execution when
+  // streaming.
+  private static final int STREAM_AHEAD = 256;
+  // Marks the end of the declarations handed over when streaming.
+  private static final List<Stmt> END = new ArrayList<>();
+
+  private static Interpreter interpreter;
+  private static VM vm;
+  // Whether Optimizer may inline functions.
+  private static boolean inline = true;
+  // Whether scripts run each declaration as soon as it is parsed.
+  private static boolean stream = false;
   static boolean hadError = false;
   static boolean hadRuntimeError = false;
 
-  public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: jlox [script]");
-      System.exit(64);
-    } else if (args.length == 1) {
-      runFile(args[0]);
-    } else {
-      runPrompt();
+  public static void main(String[] args) throws InterruptedException {
+    String script = null;
+    String engine = "tree";
+    boolean traceTiers = false;
+    int maxDepth = DEFAULT_MAX_DEPTH;
+
+    for (String arg : args) {
+      if (arg.startsWith("--engine=")) {
+        engine = arg.substring("--engine=".length());
+      } else if (arg.equals("--trace-tiers")) {
+        traceTiers = true;
+      } else if (arg.equals("--no-inline")) {
+        inline = false;
+      } else if (arg.equals("--stream")) {
+        stream = true;
+      } else if (arg.startsWith("--max-depth=")) {
+        maxDepth = parseDepth(arg.substring("--max-depth=".length()));
+      } else if (arg.startsWith("-") || script != null) {
+        usage();
+      } else {
+        script = arg;
+      }
+    }
+
+    switch (engine) {
+      case "tree":
+        interpreter = new Interpreter(Engine.TREE, false, maxDepth);
+        break;
+      case "closure":
+        interpreter = new Interpreter(Engine.CLOSURE, false, maxDepth);
+        break;
+      case "jvm":
+        interpreter = new Interpreter(Engine.JVM, false, maxDepth);
+        break;
+      case "tiered":
+        interpreter = new Interpreter(Engine.TIERED, traceTiers, maxDepth);
+        break;
+      case "vm": vm = new VM(maxDepth); break;
+      default: usage();
+    }
+
+    // Except in the VM, which keeps its frames on the heap, each Lox call
+    // nests Java calls, so run on a thread with a stack sized for
+    // maxDepth of them rather than on the main thread, whose stack is
+    // whatever -Xss says. Zero leaves the VM the default size.
+    long stackSize = 0;
+    if (vm == null) {
+      if (maxDepth > MAX_STACK / STACK_PER_CALL) {
+        System.err.println("--max-depth can be at most " +
+            MAX_STACK / STACK_PER_CALL + " except with --engine=vm, " +
+            "which keeps Lox frames on the heap.");
+        usage();
+      }
+      stackSize = maxDepth * STACK_PER_CALL;
+    }
+
+    String path = script;
+    Thread thread = thread(() -> start(path), "lox", stackSize);
+    thread.start();
+    thread.join();
+  }
+
+  private static Thread thread(Runnable body, String name,
+                               long stackSize) {
+    Thread thread = new Thread(null, body, name, stackSize);
+    thread.setUncaughtExceptionHandler((t, error) -> {
+      error.printStackTrace();
+      System.exit(1);
+    });
+    return thread;
+  }
+
+  private static int parseDepth(String depth) {
+    int value = 0;
+    try {
+      value = Integer.parseInt(depth);
+    } catch (NumberFormatException error) {
+      usage();
+    }
+
+    if (value < 1) usage();
+    return value;
+  }
+
+  private static void usage() {
+    System.out.println("Usage: jlox [--engine=tree|closure|vm|jvm|tiered] " +
+        "[--trace-tiers] [--max-depth=N] [--no-inline] [--stream] " +
+        "[script]");
+    System.exit(64);
+  }
+
+  private static void start(String script) {
+    try {
+      if (script != null) {
+        runFile(script);
+      } else {
+        runPrompt();
+      }
+    } catch (IOException error) {
+      throw new UncheckedIOException(error);
     }
   }
 
   private static void runFile(String path) throws IOException {
-    byte[] bytes = Files.readAllBytes(Paths.get(path));
-    run(new String(bytes, Charset.defaultCharset()));
+    // Mapped instead of read, so the source is never copied onto the heap.
+    // Scripts are UTF-8, which the scanner reads directly. Pipes and other
+    // special files have no size to map, so those are read instead.
+    Path file = Paths.get(path);
+    ByteBuffer source;
+    if (Files.isRegularFile(file)) {
+      try (FileChannel channel = FileChannel.open(file)) {
+        source = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                             channel.size());
+      }
+    } else {
+      source = ByteBuffer.wrap(Files.readAllBytes(file));
+    }
+
+    if (stream) {
+      runStreaming(source);
+    } else {
+      run(source);
+    }
 
     // Indicate an error in the exit code.
     if (hadError) System.exit(65);
@@ -34,6 +173,10 @@ public class Lox {
   }
 
   private static void runPrompt() throws IOException {
+    // Any later line could redefine a function inlined into an earlier
+    // one.
+    inline = false;
+
     InputStreamReader input = new InputStreamReader(System.in);
     BufferedReader reader = new BufferedReader(input);
 
@@ -41,30 +184,102 @@ public class Lox {
       System.out.print("> ");
       String line = reader.readLine();
       if (line == null) break;
-      run(line);
+      run(ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8)));
       hadError = false;
     }
   }
 
-  private static void run(String source) {
+  private static void run(ByteBuffer source) {
     Scanner scanner = new Scanner(source);
-    List<Token> tokens = scanner.scanTokens();
+    TokenBuffer tokens = scanner.scanTokens();
     Parser parser = new Parser(tokens);
     List<Stmt> statements = parser.parse();
 
     // Stop if there was a syntax error.
     if (hadError) return;
 
-    Resolver resolver = new Resolver(interpreter);
+    Resolver resolver = new Resolver();
     resolver.resolve(statements);
 
     // Stop if there was a resolution error.
     if (hadError) return;
 
+    statements = new Optimizer(resolver.reboundGlobals, inline)
+        .optimize(statements);
+
+    execute(statements);
+  }
+
+  private static void execute(List<Stmt> statements) {
+    if (vm != null) {
+      if (vm.interpret(statements) == VM.InterpretResult.RUNTIME_ERROR) {
+        hadRuntimeError = true;
+      }
+      return;
+    }
+
     interpreter.interpret(statements);
   }
 
-  static void error(int line, String message) {
+  // Runs each top-level declaration as soon as it is ready, so that long
+  // scripts start running before they are fully read. A front-end thread
+  // scans, parses and resolves one declaration at a time while this one
+  // runs the declarations before it. A declaration with an error never
+  // runs, and neither does anything after it; the rest of the script is
+  // only checked, to report its errors. The check runs to the end even
+  // after a runtime error, so that what is reported and the exit code do
+  // not depend on how far ahead the front end had got.
+  private static void runStreaming(ByteBuffer source) {
+    BlockingQueue<List<Stmt>> declarations =
+        new ArrayBlockingQueue<>(STREAM_AHEAD);
+    // Parsing nests Java calls only as deeply as the source does.
+    Thread front = thread(() -> frontEnd(source, declarations),
+                          "lox-front-end", 0);
+    front.start();
+
+    try {
+      for (;;) {
+        List<Stmt> statements = declarations.take();
+        // Taking END also makes the front end's errors visible here.
+        if (statements == END) return;
+
+        // After a runtime error, only wait for the front end to finish.
+        if (!hadRuntimeError) execute(statements);
+      }
+    } catch (InterruptedException error) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void frontEnd(ByteBuffer source,
+                               BlockingQueue<List<Stmt>> declarations) {
+    Parser parser = new Parser(new Scanner(source).scanLazily());
+    Resolver resolver = new Resolver();
+    // A later declaration could redefine a function inlined into an
+    // earlier one that has already run.
+    Optimizer optimizer = new Optimizer(resolver.reboundGlobals, false);
+
+    try {
+      while (!parser.isAtEnd()) {
+        int errors = parser.errors;
+        Stmt declaration = parser.declaration();
+        if (parser.errors != errors) continue;
+
+        List<Stmt> statements = Arrays.asList(declaration);
+        resolver.resolve(statements);
+        if (hadError) continue;
+
+        statements = optimizer.optimize(statements);
+        if (!statements.isEmpty()) declarations.put(statements);
+      }
+
+      declarations.put(END);
+    } catch (InterruptedException error) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public static void error(int line, String message) {
     report(line, "", message);
   }
 
@@ -75,7 +290,7 @@ public class Lox {
     hadError = true;
   }
 
-  static void error(Token token, String message) {
+  public static void error(Token token, String message) {
     if (token.type == TokenType.EOF) {
       report(token.line, " at end", message);
     } else {
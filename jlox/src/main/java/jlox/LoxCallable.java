@@ -1,8 +1,35 @@
 package jlox;
 
-import java.util.List;
-
+// Calls with up to four arguments go through the entry point for their
+// count, so neither side has to put the arguments in a collection. The
+// defaults hand them to call() in an array, which is also the entry point
+// for any other count; callables that care override the ones they can
+// take directly.
 interface LoxCallable {
+  Object[] NO_ARGUMENTS = new Object[0];
+
   int arity();
-  Object call(Interpreter interpreter, List<Object> arguments);
+  Object call(Interpreter interpreter, Object[] arguments);
+
+  default Object call0(Interpreter interpreter) {
+    return call(interpreter, NO_ARGUMENTS);
+  }
+
+  default Object call1(Interpreter interpreter, Object a) {
+    return call(interpreter, new Object[] { a });
+  }
+
+  default Object call2(Interpreter interpreter, Object a, Object b) {
+    return call(interpreter, new Object[] { a, b });
+  }
+
+  default Object call3(Interpreter interpreter, Object a, Object b,
+                       Object c) {
+    return call(interpreter, new Object[] { a, b, c });
+  }
+
+  default Object call4(Interpreter interpreter, Object a, Object b,
+                       Object c, Object d) {
+    return call(interpreter, new Object[] { a, b, c, d });
+  }
 }
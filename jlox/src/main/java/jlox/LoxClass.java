@@ -1,30 +1,31 @@
 package jlox;
 
-import java.util.List;
+import java.util.IdentityHashMap;
 import java.util.Map;
 
 class LoxClass implements LoxCallable {
   final String name;
   final LoxClass superclass;
-  private final Map<String, LoxFunction> methods;
+  // Includes the inherited methods that are not overridden, so finding
+  // one is a single lookup however deep the hierarchy is. Keyed by
+  // identity, since names are interned; see Symbols.
+  private final Map<String, LoxFunction> methods =
+      new IdentityHashMap<>();
+  private final LoxFunction initializer;
+  // The shape every new instance starts out with.
+  final Shape emptyShape = new Shape(this);
 
   LoxClass(String name, LoxClass superclass,
            Map<String, LoxFunction> methods) {
     this.superclass = superclass;
     this.name = name;
-    this.methods = methods;
+    if (superclass != null) this.methods.putAll(superclass.methods);
+    this.methods.putAll(methods);
+    this.initializer = this.methods.get("init");
   }
 
   LoxFunction findMethod(String name) {
-    if (methods.containsKey(name)) {
-      return methods.get(name);
-    }
-
-    if (superclass != null) {
-      return superclass.findMethod(name);
-    }
-
-    return null;
+    return methods.get(name);
   }
 
   @Override
@@ -33,20 +34,57 @@ class LoxClass implements LoxCallable {
   }
 
   @Override
-  public Object call(Interpreter interpreter,
-                     List<Object> arguments) {
+  public Object call(Interpreter interpreter, Object[] arguments) {
     LoxInstance instance = new LoxInstance(this);
-    LoxFunction initializer = findMethod("init");
     if (initializer != null) {
-      initializer.bind(instance).call(interpreter, arguments);
+      initializer.invoke(interpreter, instance, arguments);
     }
 
     return instance;
   }
 
+  @Override
+  public Object call0(Interpreter interpreter) {
+    LoxInstance instance = new LoxInstance(this);
+    if (initializer != null) initializer.invoke0(interpreter, instance);
+    return instance;
+  }
+
+  // Callers check the arity first, so a class that takes arguments has
+  // an initializer.
+
+  @Override
+  public Object call1(Interpreter interpreter, Object a) {
+    LoxInstance instance = new LoxInstance(this);
+    initializer.invoke1(interpreter, instance, a);
+    return instance;
+  }
+
+  @Override
+  public Object call2(Interpreter interpreter, Object a, Object b) {
+    LoxInstance instance = new LoxInstance(this);
+    initializer.invoke2(interpreter, instance, a, b);
+    return instance;
+  }
+
+  @Override
+  public Object call3(Interpreter interpreter, Object a, Object b,
+                      Object c) {
+    LoxInstance instance = new LoxInstance(this);
+    initializer.invoke3(interpreter, instance, a, b, c);
+    return instance;
+  }
+
+  @Override
+  public Object call4(Interpreter interpreter, Object a, Object b,
+                      Object c, Object d) {
+    LoxInstance instance = new LoxInstance(this);
+    initializer.invoke4(interpreter, instance, a, b, c, d);
+    return instance;
+  }
+
   @Override
   public int arity() {
-    LoxFunction initializer = findMethod("init");
     if (initializer == null) return 0;
     return initializer.arity();
   }
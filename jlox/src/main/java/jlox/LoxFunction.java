@@ -1,24 +1,54 @@
 package jlox;
 
-import java.util.List;
-
 class LoxFunction implements LoxCallable {
   private final Stmt.Function declaration;
+  // The cells of the variables it captures; see Environment.capture().
   private final Environment closure;
   private final boolean isInitializer;
+  // The body compiled by ClosureCompiler, or null to walk the AST.
+  private final ClosureCompiler.StmtNode body;
+  // Tracks how hot the declaration is and holds its compiled code, when
+  // running on the jvm or tiered engines.
+  private final FunctionProfile profile;
+  // The instance a method was bound to, passed as "this" on every call.
+  private final LoxInstance receiver;
 
   LoxFunction(Stmt.Function declaration, Environment closure,
               boolean isInitializer) {
+    this(declaration, closure, isInitializer, null, null);
+  }
+
+  LoxFunction(Stmt.Function declaration, Environment closure,
+              boolean isInitializer, ClosureCompiler.StmtNode body) {
+    this(declaration, closure, isInitializer, body, null);
+  }
+
+  LoxFunction(Stmt.Function declaration, Environment closure,
+              boolean isInitializer, ClosureCompiler.StmtNode body,
+              FunctionProfile profile) {
+    this(declaration, closure, isInitializer, body, profile, null);
+  }
+
+  private LoxFunction(Stmt.Function declaration, Environment closure,
+                      boolean isInitializer, ClosureCompiler.StmtNode body,
+                      FunctionProfile profile, LoxInstance receiver) {
     this.isInitializer = isInitializer;
     this.closure = closure;
     this.declaration = declaration;
+    this.body = body;
+    this.profile = profile;
+    this.receiver = receiver;
   }
 
   LoxFunction bind(LoxInstance instance) {
-    Environment environment = new Environment(closure);
-    environment.define("this", instance);
-    return new LoxFunction(declaration, environment,
-                           isInitializer);
+    return new LoxFunction(declaration, closure, isInitializer, body,
+                           profile, instance);
+  }
+
+  // True for a method taken straight from its class, which only the
+  // runtime sees: Lox code only ever gets methods that are bound.
+  boolean isUnboundMethod() {
+    return declaration.isMethod && receiver == null;
   }
 
   @Override
@@ -32,23 +62,193 @@ class LoxFunction implements LoxCallable {
   }
 
   @Override
-  public Object call(Interpreter interpreter,
-                     List<Object> arguments) {
-    Environment environment = new Environment(closure);
-    for (int i = 0; i < declaration.params.size(); i++) {
-      environment.define(declaration.params.get(i).lexeme,
-          arguments.get(i));
+  public Object call(Interpreter interpreter, Object[] arguments) {
+    return invoke(interpreter, receiver, arguments);
+  }
+
+  @Override
+  public Object call0(Interpreter interpreter) {
+    return invoke0(interpreter, receiver);
+  }
+
+  @Override
+  public Object call1(Interpreter interpreter, Object a) {
+    return invoke1(interpreter, receiver, a);
+  }
+
+  @Override
+  public Object call2(Interpreter interpreter, Object a, Object b) {
+    return invoke2(interpreter, receiver, a, b);
+  }
+
+  @Override
+  public Object call3(Interpreter interpreter, Object a, Object b,
+                      Object c) {
+    return invoke3(interpreter, receiver, a, b, c);
+  }
+
+  @Override
+  public Object call4(Interpreter interpreter, Object a, Object b,
+                      Object c, Object d) {
+    return invoke4(interpreter, receiver, a, b, c, d);
+  }
+
+  // Calls the function with the given receiver, which is ignored unless
+  // it is a method. Call sites that look a method up and call it right
+  // away come here directly instead of binding it first.
+  Object invoke(Interpreter interpreter, LoxInstance receiver,
+                Object[] arguments) {
+    return finish(interpreter, receiver,
+                  activate(interpreter, receiver, arguments));
+  }
+
+  // The fixed-arity versions of invoke(). Only compiled code takes its
+  // arguments in an array.
+
+  Object invoke0(Interpreter interpreter, LoxInstance receiver) {
+    if (compiled() != null) {
+      return invoke(interpreter, receiver, NO_ARGUMENTS);
+    }
+
+    Environment environment = frame(interpreter, receiver);
+    return finish(interpreter, receiver, run(interpreter, environment));
+  }
+
+  Object invoke1(Interpreter interpreter, LoxInstance receiver,
+                 Object a) {
+    if (compiled() != null) {
+      return invoke(interpreter, receiver, new Object[] { a });
     }
 
+    Environment environment = frame(interpreter, receiver);
+    environment.define(a);
+    return finish(interpreter, receiver, run(interpreter, environment));
+  }
+
+  Object invoke2(Interpreter interpreter, LoxInstance receiver,
+                 Object a, Object b) {
+    if (compiled() != null) {
+      return invoke(interpreter, receiver, new Object[] { a, b });
+    }
+
+    Environment environment = frame(interpreter, receiver);
+    environment.define(a);
+    environment.define(b);
+    return finish(interpreter, receiver, run(interpreter, environment));
+  }
+
+  Object invoke3(Interpreter interpreter, LoxInstance receiver,
+                 Object a, Object b, Object c) {
+    if (compiled() != null) {
+      return invoke(interpreter, receiver, new Object[] { a, b, c });
+    }
+
+    Environment environment = frame(interpreter, receiver);
+    environment.define(a);
+    environment.define(b);
+    environment.define(c);
+    return finish(interpreter, receiver, run(interpreter, environment));
+  }
+
+  Object invoke4(Interpreter interpreter, LoxInstance receiver,
+                 Object a, Object b, Object c, Object d) {
+    if (compiled() != null) {
+      return invoke(interpreter, receiver, new Object[] { a, b, c, d });
+    }
+
+    Environment environment = frame(interpreter, receiver);
+    environment.define(a);
+    environment.define(b);
+    environment.define(c);
+    environment.define(d);
+    return finish(interpreter, receiver, run(interpreter, environment));
+  }
+
+  // Wraps a tail call for the caller to run after the current function
+  // returns. The receiver is only used if this is an unbound method.
+  TailCall tailCall(LoxInstance receiver, Object[] arguments) {
+    if (!isUnboundMethod()) receiver = this.receiver;
+    return new TailCall(this, receiver, arguments);
+  }
+
+  private JvmFunction compiled() {
+    return profile != null ? profile.enter() : null;
+  }
+
+  // Enters the call and takes its environment from the interpreter's
+  // pool. run() has to follow, once the arguments are defined.
+  private Environment frame(Interpreter interpreter, LoxInstance receiver) {
+    interpreter.enterCall(declaration.name);
+    Environment environment =
+        interpreter.acquire(closure, declaration.slots);
+    if (declaration.isMethod) environment.define(receiver);
+    return environment;
+  }
+
+  // Runs the body once, returning whatever it completes with.
+  private Object activate(Interpreter interpreter, LoxInstance receiver,
+                          Object[] arguments) {
+    JvmFunction compiled = compiled();
+    if (compiled != null) {
+      interpreter.enterCall(declaration.name);
+      try {
+        return compiled.call(interpreter, closure, receiver, arguments);
+      } catch (StackOverflowError error) {
+        throw overflow();
+      } finally {
+        interpreter.depth--;
+      }
+    }
+
+    Environment environment = frame(interpreter, receiver);
+    for (Object argument : arguments) {
+      environment.define(argument);
+    }
+    return run(interpreter, environment);
+  }
+
+  private Object run(Interpreter interpreter, Environment environment) {
+    for (int slot : declaration.capturedParams) {
+      environment.set(slot, new Cell(environment.get(slot)));
+    }
+
+    FunctionProfile caller = interpreter.executing;
+    interpreter.executing = profile;
     try {
-      interpreter.executeBlock(declaration.body, environment);
-    } catch (Return returnValue) {
-      if (isInitializer) return closure.getAt(0, "this");
+      if (body != null) return body.execute(environment);
+      return interpreter.executeBlock(declaration.body, environment);
+    } catch (StackOverflowError error) {
+      throw overflow();
+    } finally {
+      interpreter.executing = caller;
+      interpreter.depth--;
+      interpreter.release();
+    }
+  }
+
+  // For when the Java stack runs out before the interpreter's maximum
+  // depth is reached. If there is no room to report it here either, the
+  // error reaches the next function out, which tries again.
+  private RuntimeError overflow() {
+    return new RuntimeError(declaration.name, "Stack overflow.");
+  }
 
-      return returnValue.value;
+  // Turns what the body completed with into the call's result. A tail
+  // call is run here, after the frame that made it is gone, and so is
+  // each tail call it makes in turn.
+  private Object finish(Interpreter interpreter, LoxInstance receiver,
+                        Object completion) {
+    LoxFunction function = this;
+    while (completion instanceof TailCall) {
+      TailCall call = (TailCall)completion;
+      function = call.function;
+      receiver = call.receiver;
+      completion = function.activate(interpreter, receiver,
+                                     call.arguments);
     }
 
-    if (isInitializer) return closure.getAt(0, "this");
-    return null;
+    if (function.isInitializer) return receiver;
+    if (completion == Interpreter.NORMAL) return null;
+    return completion;
   }
 }
@@ -1,30 +1,30 @@
 package jlox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class LoxInstance {
+  private static final Object[] NO_FIELDS = new Object[0];
+
   private LoxClass klass;
-  private final Map<String, Object> fields = new HashMap<>();
+  // Field values, laid out as the shape says. The array may be longer
+  // than the shape so that adding fields does not copy it every time.
+  Shape shape;
+  Object[] values = NO_FIELDS;
 
   LoxInstance(LoxClass klass) {
     this.klass = klass;
+    this.shape = klass.emptyShape;
   }
 
-  Object get(Token name) {
-    if (fields.containsKey(name.lexeme)) {
-      return fields.get(name.lexeme);
+  // Moves to a shape with one more field, which goes last.
+  void addField(Shape next, Object value) {
+    int index = shape.size();
+    if (index == values.length) {
+      values = Arrays.copyOf(values, Math.max(4, index * 2));
     }
 
-    LoxFunction method = klass.findMethod(name.lexeme);
-    if (method != null) return method.bind(this);
-
-    throw new RuntimeError(name,
-        "Undefined property '" + name.lexeme + "'.");
-  }
-
-  void set(Token name, Object value) {
-    fields.put(name.lexeme, value);
+    values[index] = value;
+    shape = next;
   }
 
   @Override
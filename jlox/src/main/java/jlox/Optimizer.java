@@ -0,0 +1,636 @@
+package jlox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Rewrites the resolved AST before it runs: folds operators whose
+// operands are literals, drops branches and loops that can never run, and
+// short-circuits "and" and "or" on a constant left operand. An operator
+// is only folded when evaluating it cannot fail, so "1 + nil" is left for
+// the interpreter to report at runtime as before.
+//
+// Nodes are only copied when something under them changed, and copies
+// keep what the resolver stored in the original. Declarations are never
+// removed from a scope that is kept, so the slots it numbered stay valid.
+//
+// Calls to small top-level functions whose body is "return <expr>;" are
+// replaced by that expression, with the parameters replaced by the
+// arguments. That needs the global to always hold the function when the
+// call runs: it is declared once and never assigned to, and the call
+// comes after the declaration in the source, so it cannot run first.
+// Arguments have to be literals or locals, so that reading them when the
+// body gets to them instead of before the call makes no difference.
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+  // The most nodes an inlined function's expression can have.
+  static final int INLINE_SIZE = 16;
+
+  private final Set<String> reboundGlobals;
+  private final boolean inline;
+  private final Map<String, Stmt.Function> inlinable = new HashMap<>();
+
+  Optimizer(Set<String> reboundGlobals, boolean inline) {
+    this.reboundGlobals = reboundGlobals;
+    this.inline = inline;
+  }
+
+  // Optimizes a whole script.
+  List<Stmt> optimize(List<Stmt> statements) {
+    List<Stmt> optimized = new ArrayList<>();
+    for (Stmt statement : statements) {
+      Stmt result = optimize(statement);
+      if (result == null) continue;
+
+      optimized.add(result);
+      if (result instanceof Stmt.Function) {
+        considerInlining((Stmt.Function)result);
+      }
+    }
+
+    return optimized;
+  }
+
+  private List<Stmt> optimizeStatements(List<Stmt> statements) {
+    List<Stmt> optimized = new ArrayList<>();
+    boolean changed = false;
+    for (Stmt statement : statements) {
+      Stmt result = optimize(statement);
+      if (result != null) optimized.add(result);
+      changed |= result != statement;
+    }
+
+    return changed ? optimized : statements;
+  }
+
+  // Returns null for a statement that does nothing.
+  private Stmt optimize(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  // For places the grammar needs a statement in.
+  private Stmt optimizeBranch(Stmt stmt) {
+    Stmt result = optimize(stmt);
+    if (result != null) return result;
+
+    Stmt.Block empty = new Stmt.Block(new ArrayList<>());
+    empty.slots = 0;
+    return empty;
+  }
+
+  private Expr optimize(Expr expr) {
+    return expr.accept(this);
+  }
+
+  private List<Expr> optimizeAll(List<Expr> exprs) {
+    List<Expr> optimized = new ArrayList<>();
+    boolean changed = false;
+    for (Expr expr : exprs) {
+      Expr result = optimize(expr);
+      optimized.add(result);
+      changed |= result != expr;
+    }
+
+    return changed ? optimized : exprs;
+  }
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    List<Stmt> statements = optimizeStatements(stmt.statements);
+    if (statements == stmt.statements) return stmt;
+
+    Stmt.Block block = new Stmt.Block(statements);
+    block.slots = stmt.slots;
+    return block;
+  }
+
+  @Override
+  public Stmt visitClassStmt(Stmt.Class stmt) {
+    List<Stmt.Function> methods = new ArrayList<>();
+    boolean changed = false;
+    for (Stmt.Function method : stmt.methods) {
+      Stmt.Function result = function(method);
+      methods.add(result);
+      changed |= result != method;
+    }
+    if (!changed) return stmt;
+
+    Stmt.Class klass = new Stmt.Class(stmt.name, stmt.superclass, methods);
+    klass.slot = stmt.slot;
+    klass.isCaptured = stmt.isCaptured;
+    return klass;
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    Expr expression = optimize(stmt.expression);
+    if (expression instanceof Expr.Literal) return null;
+    if (expression == stmt.expression) return stmt;
+
+    return new Stmt.Expression(expression);
+  }
+
+  @Override
+  public Stmt visitForStmt(Stmt.For stmt) {
+    Stmt initializer = null;
+    if (stmt.initializer != null) initializer = optimize(stmt.initializer);
+
+    Expr condition = null;
+    if (stmt.condition != null) condition = optimize(stmt.condition);
+    if (condition instanceof Expr.Literal &&
+        !Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+      if (initializer == null) return null;
+
+      Stmt.Block block = new Stmt.Block(Arrays.asList(initializer));
+      block.slots = stmt.slots;
+      return block;
+    }
+
+    Expr increment = null;
+    if (stmt.increment != null) increment = optimize(stmt.increment);
+    Stmt body = optimizeBranch(stmt.body);
+    if (initializer == stmt.initializer && condition == stmt.condition &&
+        increment == stmt.increment && body == stmt.body) {
+      return stmt;
+    }
+
+    Stmt.For loop = new Stmt.For(initializer, condition, increment, body);
+    loop.slots = stmt.slots;
+    loop.isCounted = stmt.isCounted;
+    loop.readsCounter = stmt.readsCounter;
+    loop.step = stmt.step;
+    return loop;
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    return function(stmt);
+  }
+
+  private Stmt.Function function(Stmt.Function stmt) {
+    List<Stmt> body = optimizeStatements(stmt.body);
+    if (body == stmt.body) return stmt;
+
+    Stmt.Function function = new Stmt.Function(stmt.name, stmt.params,
+                                               body);
+    function.slot = stmt.slot;
+    function.slots = stmt.slots;
+    function.isMethod = stmt.isMethod;
+    function.isCaptured = stmt.isCaptured;
+    function.captures = stmt.captures;
+    function.capturedParams = stmt.capturedParams;
+    return function;
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    Expr condition = optimize(stmt.condition);
+    if (condition instanceof Expr.Literal) {
+      if (Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+        return optimize(stmt.thenBranch);
+      }
+      return stmt.elseBranch == null ? null : optimize(stmt.elseBranch);
+    }
+
+    Stmt thenBranch = optimizeBranch(stmt.thenBranch);
+    Stmt elseBranch = null;
+    if (stmt.elseBranch != null) elseBranch = optimize(stmt.elseBranch);
+
+    if (condition == stmt.condition && thenBranch == stmt.thenBranch &&
+        elseBranch == stmt.elseBranch) {
+      return stmt;
+    }
+    return new Stmt.If(condition, thenBranch, elseBranch);
+  }
+
+  @Override
+  public Stmt visitPrintStmt(Stmt.Print stmt) {
+    Expr expression = optimize(stmt.expression);
+    if (expression == stmt.expression) return stmt;
+
+    return new Stmt.Print(expression);
+  }
+
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) return stmt;
+
+    Expr value = optimize(stmt.value);
+    if (value == stmt.value) return stmt;
+
+    // Inlining can turn a call into something else, and unwrapping a
+    // grouping can expose one.
+    Stmt.Return result = new Stmt.Return(stmt.keyword, value);
+    result.isTailCall = value instanceof Expr.Call;
+    return result;
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer == null) return stmt;
+
+    Expr initializer = optimize(stmt.initializer);
+    if (initializer == stmt.initializer) return stmt;
+
+    Stmt.Var result = new Stmt.Var(stmt.name, initializer);
+    result.slot = stmt.slot;
+    result.isCaptured = stmt.isCaptured;
+    return result;
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    Expr condition = optimize(stmt.condition);
+    if (condition instanceof Expr.Literal &&
+        !Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+      return null;
+    }
+
+    Stmt body = optimizeBranch(stmt.body);
+    if (condition == stmt.condition && body == stmt.body) return stmt;
+
+    return new Stmt.While(condition, body);
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr value = optimize(expr.value);
+    if (value == expr.value) return expr;
+
+    Expr.Assign assign = new Expr.Assign(expr.name, value);
+    assign.depth = expr.depth;
+    assign.slot = expr.slot;
+    assign.inCell = expr.inCell;
+    return assign;
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr left = optimize(expr.left);
+    Expr right = optimize(expr.right);
+
+    if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+      Object folded = fold(expr.operator, ((Expr.Literal)left).value,
+                           ((Expr.Literal)right).value);
+      if (folded != null) return new Expr.Literal(folded);
+    }
+
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Binary(left, expr.operator, right);
+  }
+
+  // Returns null if the operation fails at runtime, and so is left for
+  // the interpreter to report.
+  private static Object fold(Token operator, Object left, Object right) {
+    switch (operator.type) {
+      case BANG_EQUAL: return !Interpreter.isEqual(left, right);
+      case EQUAL_EQUAL: return Interpreter.isEqual(left, right);
+      case PLUS:
+        if (left instanceof String && right instanceof String) {
+          return (String)left + (String)right;
+        }
+        break;
+      default:
+        break;
+    }
+
+    if (!(left instanceof Double) || !(right instanceof Double)) {
+      return null;
+    }
+
+    double a = (double)left;
+    double b = (double)right;
+    switch (operator.type) {
+      case GREATER: return a > b;
+      case GREATER_EQUAL: return a >= b;
+      case LESS: return a < b;
+      case LESS_EQUAL: return a <= b;
+      case MINUS: return a - b;
+      case PLUS: return a + b;
+      case SLASH: return a / b;
+      case STAR: return a * b;
+      default: return null;
+    }
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    Expr callee = optimize(expr.callee);
+    List<Expr> arguments = optimizeAll(expr.arguments);
+
+    Expr inlined = inline(callee, arguments);
+    if (inlined != null) return optimize(inlined);
+
+    if (callee == expr.callee && arguments == expr.arguments) return expr;
+    return new Expr.Call(callee, expr.paren, arguments);
+  }
+
+  private void considerInlining(Stmt.Function function) {
+    String name = function.name.lexeme;
+    if (!inline || reboundGlobals.contains(name)) return;
+    if (function.body.size() != 1) return;
+    if (!(function.body.get(0) instanceof Stmt.Return)) return;
+
+    Expr value = ((Stmt.Return)function.body.get(0)).value;
+    if (value == null) return;
+
+    Scan scan = new Scan(name);
+    scan.scan(value);
+    if (scan.inlinable && scan.size <= INLINE_SIZE) {
+      inlinable.put(name, function);
+    }
+  }
+
+  // Returns the function's expression with the arguments substituted,
+  // or null if the call can't be inlined.
+  private Expr inline(Expr callee, List<Expr> arguments) {
+    if (!(callee instanceof Expr.Variable)) return null;
+    Expr.Variable variable = (Expr.Variable)callee;
+    if (variable.depth != -1) return null;
+
+    Stmt.Function function = inlinable.get(variable.name.lexeme);
+    if (function == null) return null;
+    if (arguments.size() != function.params.size()) return null;
+
+    Expr value = ((Stmt.Return)function.body.get(0)).value;
+    Scan scan = new Scan(function.name.lexeme);
+    scan.scan(value);
+    for (Expr argument : arguments) {
+      if (argument instanceof Expr.Literal) continue;
+      // A call in the body could assign to a captured local.
+      if (scan.calls) return null;
+      if (argument instanceof Expr.This) continue;
+      if (argument instanceof Expr.Variable &&
+          ((Expr.Variable)argument).depth != -1) {
+        continue;
+      }
+      return null;
+    }
+
+    return value.accept(new Substitution(arguments));
+  }
+
+  @Override
+  public Expr visitGetExpr(Expr.Get expr) {
+    Expr object = optimize(expr.object);
+    if (object == expr.object) return expr;
+
+    return new Expr.Get(object, expr.name);
+  }
+
+  // Parentheses only matter to the parser.
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    return optimize(expr.expression);
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    Expr left = optimize(expr.left);
+    if (left instanceof Expr.Literal) {
+      boolean truthy = Interpreter.isTruthy(((Expr.Literal)left).value);
+      if (expr.operator.type == TokenType.OR) {
+        return truthy ? left : optimize(expr.right);
+      }
+      return truthy ? optimize(expr.right) : left;
+    }
+
+    Expr right = optimize(expr.right);
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Logical(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitSetExpr(Expr.Set expr) {
+    Expr object = optimize(expr.object);
+    Expr value = optimize(expr.value);
+    if (object == expr.object && value == expr.value) return expr;
+
+    return new Expr.Set(object, expr.name, value);
+  }
+
+  @Override
+  public Expr visitSuperExpr(Expr.Super expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitThisExpr(Expr.This expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr right = optimize(expr.right);
+    if (right instanceof Expr.Literal) {
+      Object value = ((Expr.Literal)right).value;
+      if (expr.operator.type == TokenType.BANG) {
+        return new Expr.Literal(!Interpreter.isTruthy(value));
+      }
+      if (value instanceof Double) {
+        return new Expr.Literal(-(double)value);
+      }
+    }
+
+    if (right == expr.right) return expr;
+    return new Expr.Unary(expr.operator, right);
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    return expr;
+  }
+
+  // Measures an expression and checks that it can be inlined: it doesn't
+  // assign to a parameter or call the function it belongs to.
+  private static class Scan implements Expr.Visitor<Void> {
+    private final String function;
+    int size = 0;
+    boolean calls = false;
+    boolean inlinable = true;
+
+    Scan(String function) {
+      this.function = function;
+    }
+
+    private void scan(Expr expr) {
+      size++;
+      expr.accept(this);
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+      if (expr.depth != -1) inlinable = false;
+      scan(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+      scan(expr.left);
+      scan(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+      calls = true;
+      if (expr.callee instanceof Expr.Variable &&
+          ((Expr.Variable)expr.callee).name.lexeme.equals(function)) {
+        inlinable = false;
+      }
+
+      scan(expr.callee);
+      for (Expr argument : expr.arguments) {
+        scan(argument);
+      }
+      return null;
+    }
+
+    @Override
+    public Void visitGetExpr(Expr.Get expr) {
+      scan(expr.object);
+      return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+      scan(expr.expression);
+      return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitLogicalExpr(Expr.Logical expr) {
+      scan(expr.left);
+      scan(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitSetExpr(Expr.Set expr) {
+      scan(expr.object);
+      scan(expr.value);
+      return null;
+    }
+
+    @Override
+    public Void visitSuperExpr(Expr.Super expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitThisExpr(Expr.This expr) {
+      return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+      scan(expr.right);
+      return null;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+      return null;
+    }
+  }
+
+  // Copies an inlined function's expression with its parameters replaced
+  // by the arguments. Everything else it reads is global, so it resolves
+  // the same anywhere. The copies get caches of their own.
+  private static class Substitution implements Expr.Visitor<Expr> {
+    private final List<Expr> arguments;
+
+    Substitution(List<Expr> arguments) {
+      this.arguments = arguments;
+    }
+
+    private Expr copy(Expr expr) {
+      return expr.accept(this);
+    }
+
+    @Override
+    public Expr visitAssignExpr(Expr.Assign expr) {
+      Expr.Assign assign = new Expr.Assign(expr.name, copy(expr.value));
+      assign.depth = expr.depth;
+      assign.slot = expr.slot;
+      assign.inCell = expr.inCell;
+      return assign;
+    }
+
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+      return new Expr.Binary(copy(expr.left), expr.operator,
+                             copy(expr.right));
+    }
+
+    @Override
+    public Expr visitCallExpr(Expr.Call expr) {
+      List<Expr> copies = new ArrayList<>();
+      for (Expr argument : expr.arguments) {
+        copies.add(copy(argument));
+      }
+      return new Expr.Call(copy(expr.callee), expr.paren, copies);
+    }
+
+    @Override
+    public Expr visitGetExpr(Expr.Get expr) {
+      return new Expr.Get(copy(expr.object), expr.name);
+    }
+
+    @Override
+    public Expr visitGroupingExpr(Expr.Grouping expr) {
+      return copy(expr.expression);
+    }
+
+    @Override
+    public Expr visitLiteralExpr(Expr.Literal expr) {
+      return expr;
+    }
+
+    @Override
+    public Expr visitLogicalExpr(Expr.Logical expr) {
+      return new Expr.Logical(copy(expr.left), expr.operator,
+                              copy(expr.right));
+    }
+
+    @Override
+    public Expr visitSetExpr(Expr.Set expr) {
+      return new Expr.Set(copy(expr.object), expr.name,
+                          copy(expr.value));
+    }
+
+    @Override
+    public Expr visitSuperExpr(Expr.Super expr) {
+      return expr;
+    }
+
+    @Override
+    public Expr visitThisExpr(Expr.This expr) {
+      return expr;
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+      return new Expr.Unary(expr.operator, copy(expr.right));
+    }
+
+    @Override
+    public Expr visitVariableExpr(Expr.Variable expr) {
+      if (expr.depth == 0) return arguments.get(expr.slot);
+      return expr;
+    }
+  }
+}
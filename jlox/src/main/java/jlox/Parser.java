@@ -1,7 +1,6 @@
 package jlox;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import static jlox.TokenType.*;
@@ -9,10 +8,15 @@ import static jlox.TokenType.*;
 class Parser {
   private static class ParseError extends RuntimeException {}
 
-  private final List<Token> tokens;
+  // Tokens are only made into Token objects when peek() or previous()
+  // asks for one; matching checks the types in the buffer.
+  private final TokenBuffer tokens;
   private int current = 0;
+  // Syntax errors reported so far. A declaration that had one may have
+  // nulls in place of the statements inside it that failed to parse.
+  int errors = 0;
 
-  Parser(List<Token> tokens) {
+  Parser(TokenBuffer tokens) {
     this.tokens = tokens;
   }
 
@@ -29,7 +33,9 @@ class Parser {
     return assignment();
   }
 
-  private Stmt declaration() {
+  // Also called on its own by Lox.runStreaming(), one declaration at a
+  // time. Returns null for a declaration with a syntax error.
+  Stmt declaration() {
     try {
       if (match(CLASS)) return classDeclaration();
       if (match(FUN)) return function("function");
@@ -43,7 +49,8 @@ class Parser {
   }
 
   private Stmt classDeclaration() {
-    Token name = consume(IDENTIFIER, "Expect class name.");
+    consume(IDENTIFIER, "Expect class name.");
+    Token name = previous();
 
     Expr.Variable superclass = null;
     if (match(LESS)) {
@@ -99,21 +106,7 @@ class Parser {
     consume(RIGHT_PAREN, "Expect ')' after for clauses.");
     Stmt body = statement();
 
-    if (increment != null) {
-      body = new Stmt.Block(
-          Arrays.asList(
-              body,
-              new Stmt.Expression(increment)));
-    }
-
-    if (condition == null) condition = new Expr.Literal(true);
-    body = new Stmt.While(condition, body);
-
-    if (initializer != null) {
-      body = new Stmt.Block(Arrays.asList(initializer, body));
-    }
-
-    return body;
+    return new Stmt.For(initializer, condition, increment, body);
   }
 
   private Stmt ifStatement() {
@@ -148,7 +141,8 @@ class Parser {
   }
 
   private Stmt varDeclaration() {
-    Token name = consume(IDENTIFIER, "Expect variable name.");
+    consume(IDENTIFIER, "Expect variable name.");
+    Token name = previous();
 
     Expr initializer = null;
     if (match(EQUAL)) {
@@ -175,7 +169,8 @@ class Parser {
   }
 
   private Stmt.Function function(String kind) {
-    Token name = consume(IDENTIFIER, "Expect " + kind + " name.");
+    consume(IDENTIFIER, "Expect " + kind + " name.");
+    Token name = previous();
     consume(LEFT_PAREN, "Expect '(' after " + kind + " name.");
     List<Token> parameters = new ArrayList<>();
     if (!check(RIGHT_PAREN)) {
@@ -184,8 +179,8 @@ class Parser {
           error(peek(), "Can't have more than 255 parameters.");
         }
 
-        parameters.add(
-            consume(IDENTIFIER, "Expect parameter name."));
+        consume(IDENTIFIER, "Expect parameter name.");
+        parameters.add(previous());
       } while (match(COMMA));
     }
     consume(RIGHT_PAREN, "Expect ')' after parameters.");
@@ -320,8 +315,8 @@ class Parser {
       } while (match(COMMA));
     }
 
-    Token paren = consume(RIGHT_PAREN,
-                          "Expect ')' after arguments.");
+    consume(RIGHT_PAREN, "Expect ')' after arguments.");
+    Token paren = previous();
 
     return new Expr.Call(callee, paren, arguments);
   }
@@ -333,8 +328,8 @@ class Parser {
       if (match(LEFT_PAREN)) {
         expr = finishCall(expr);
       } else if (match(DOT)) {
-        Token name = consume(IDENTIFIER,
-            "Expect property name after '.'.");
+        consume(IDENTIFIER, "Expect property name after '.'.");
+        Token name = previous();
         expr = new Expr.Get(expr, name);
       } else {
         break;
@@ -356,8 +351,8 @@ class Parser {
     if (match(SUPER)) {
       Token keyword = previous();
       consume(DOT, "Expect '.' after 'super'.");
-      Token method = consume(IDENTIFIER,
-          "Expect superclass method name.");
+      consume(IDENTIFIER, "Expect superclass method name.");
+      Token method = previous();
       return new Expr.Super(keyword, method);
     }
 
@@ -387,35 +382,40 @@ class Parser {
     return false;
   }
 
-  private Token consume(TokenType type, String message) {
-    if (check(type)) return advance();
+  // Returns nothing, so that the tokens only checked for are never made
+  // into Token objects. Callers that keep one take it from previous().
+  private void consume(TokenType type, String message) {
+    if (check(type)) {
+      advance();
+      return;
+    }
 
     throw error(peek(), message);
   }
 
   private boolean check(TokenType type) {
     if (isAtEnd()) return false;
-    return peek().type == type;
+    return tokens.type(current) == type;
   }
 
-  private Token advance() {
+  private void advance() {
     if (!isAtEnd()) current++;
-    return previous();
   }
 
-  private boolean isAtEnd() {
-    return peek().type == EOF;
+  boolean isAtEnd() {
+    return tokens.type(current) == EOF;
   }
 
   private Token peek() {
-    return tokens.get(current);
+    return tokens.token(current);
   }
 
   private Token previous() {
-    return tokens.get(current - 1);
+    return tokens.token(current - 1);
   }
 
   private ParseError error(Token token, String message) {
+    errors++;
     Lox.error(token, message);
     return new ParseError();
   }
@@ -424,9 +424,9 @@ class Parser {
     advance();
 
     while (!isAtEnd()) {
-      if (previous().type == SEMICOLON) return;
+      if (tokens.type(current - 1) == SEMICOLON) return;
 
-      switch (peek().type) {
+      switch (tokens.type(current)) {
         case CLASS:
         case FUN:
         case VAR:
@@ -0,0 +1,88 @@
+package jlox;
+
+// A polymorphic inline cache for one property get or set site. For each
+// shape seen there it remembers where the property lives, so a hit costs
+// a few identity compares and an array access instead of hashing the
+// name. Sites that see more shapes than it holds do the full lookup.
+class PropertyCache {
+  private static final int MAX_SHAPES = 4;
+
+  private final Shape[] shapes = new Shape[MAX_SHAPES];
+  // The field's index, or -1 for a get that finds a method.
+  private final int[] indices = new int[MAX_SHAPES];
+  // The method for a get, or the shape to move to for a set that adds
+  // the field.
+  private final Object[] targets = new Object[MAX_SHAPES];
+  private int count = 0;
+
+  Object get(LoxInstance instance, Token name) {
+    Object property = find(instance, name);
+    if (property instanceof LoxFunction &&
+        ((LoxFunction)property).isUnboundMethod()) {
+      return ((LoxFunction)property).bind(instance);
+    }
+
+    return property;
+  }
+
+  // Like get(), but returns methods without binding them, for call sites
+  // that pass the receiver to the method themselves.
+  Object find(LoxInstance instance, Token name) {
+    Shape shape = instance.shape;
+    for (int i = 0; i < count; i++) {
+      if (shapes[i] == shape) {
+        if (indices[i] >= 0) return instance.values[indices[i]];
+        return targets[i];
+      }
+    }
+
+    int index = shape.indexOf(name.lexeme);
+    if (index >= 0) {
+      remember(shape, index, null);
+      return instance.values[index];
+    }
+
+    LoxFunction method = shape.klass.findMethod(name.lexeme);
+    if (method == null) {
+      throw new RuntimeError(name,
+          "Undefined property '" + name.lexeme + "'.");
+    }
+
+    remember(shape, -1, method);
+    return method;
+  }
+
+  void set(LoxInstance instance, Token name, Object value) {
+    Shape shape = instance.shape;
+    for (int i = 0; i < count; i++) {
+      if (shapes[i] == shape) {
+        if (targets[i] == null) {
+          instance.values[indices[i]] = value;
+        } else {
+          instance.addField((Shape)targets[i], value);
+        }
+        return;
+      }
+    }
+
+    int index = shape.indexOf(name.lexeme);
+    if (index >= 0) {
+      remember(shape, index, null);
+      instance.values[index] = value;
+      return;
+    }
+
+    Shape next = shape.withField(name.lexeme);
+    remember(shape, shape.size(), next);
+    instance.addField(next, value);
+  }
+
+  private void remember(Shape shape, int index, Object target) {
+    if (count == MAX_SHAPES) return;
+
+    shapes[count] = shape;
+    indices[count] = index;
+    targets[count] = target;
+    count++;
+  }
+}
@@ -1,17 +1,74 @@
 package jlox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-  private final Interpreter interpreter;
-  private final Stack<Map<String, Boolean>> scopes = new Stack<>();
+  private final Stack<Map<String, Local>> scopes = new Stack<>();
+  private final Stack<Frame> frames = new Stack<>();
   private FunctionType currentFunction = FunctionType.NONE;
+  // Globals that are assigned to or declared more than once, which
+  // Optimizer does not assume anything about.
+  final Set<String> reboundGlobals = new HashSet<>();
+  private final Set<String> declaredGlobals = new HashSet<>();
+  // The innermost function being resolved, or null at the top level.
+  private FunctionScope function = null;
+
+  // The environment a function's locals live in, or an outermost
+  // block's at the top level. Blocks nested in it number their locals
+  // after those of the scopes around them and give the slots back when
+  // they end, so they need no environment of their own. The one holding
+  // "super" around a class's methods is a frame too.
+  private static class Frame {
+    // The index in scopes of the scope that opened it.
+    final int scope;
+    int next = 0;
+    int size = 0;
+
+    Frame(int scope) {
+      this.scope = scope;
+    }
+  }
 
-  Resolver(Interpreter interpreter) {
-    this.interpreter = interpreter;
+  private static class Local {
+    // The index in frames of the frame holding it.
+    final int frame;
+    final int slot;
+    // The statement declaring it, or null for a parameter, "this" or
+    // "super".
+    final Stmt declaration;
+    boolean defined = false;
+    boolean isCaptured = false;
+    // The references to it from its own function, which have to go
+    // through its cell if a closure turns out to capture it.
+    final List<Expr> references = new ArrayList<>();
+
+    Local(int frame, int slot, Stmt declaration) {
+      this.frame = frame;
+      this.slot = slot;
+      this.declaration = declaration;
+    }
+  }
+
+  private static class FunctionScope {
+    final Stmt.Function declaration;
+    final FunctionScope enclosing;
+    // The index in frames of its frame.
+    final int frame;
+    // Where each local it captures is in declaration.captures.
+    final Map<Local, Integer> captures = new HashMap<>();
+
+    FunctionScope(Stmt.Function declaration, FunctionScope enclosing,
+                  int frame) {
+      this.declaration = declaration;
+      this.enclosing = enclosing;
+      this.frame = frame;
+    }
   }
 
   private enum FunctionType {
@@ -37,9 +94,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitBlockStmt(Stmt.Block stmt) {
-    beginScope();
+    if (frames.isEmpty()) {
+      beginFrame();
+    } else {
+      beginScope();
+    }
     resolve(stmt.statements);
-    endScope();
+    stmt.slots = endScope();
     return null;
   }
 
@@ -48,7 +109,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     ClassType enclosingClass = currentClass;
     currentClass = ClassType.CLASS;
 
-    declare(stmt.name);
+    stmt.slot = declare(stmt.name, stmt);
     define(stmt.name);
 
     if (stmt.superclass != null &&
@@ -63,13 +124,10 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
 
     if (stmt.superclass != null) {
-      beginScope();
-      scopes.peek().put("super", true);
+      beginFrame();
+      declareSynthetic("super");
     }
 
-    beginScope();
-    scopes.peek().put("this", true);
-
     for (Stmt.Function method : stmt.methods) {
       FunctionType declaration = FunctionType.METHOD;
       if (method.name.lexeme.equals("init")) {
@@ -79,8 +137,6 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       resolveFunction(method, declaration);
     }
 
-    endScope();
-
     if (stmt.superclass != null) endScope();
 
     currentClass = enclosingClass;
@@ -93,9 +149,86 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     return null;
   }
 
+  @Override
+  public Void visitForStmt(Stmt.For stmt) {
+    if (frames.isEmpty()) {
+      beginFrame();
+    } else {
+      beginScope();
+    }
+    if (stmt.initializer != null) resolve(stmt.initializer);
+    if (stmt.condition != null) resolve(stmt.condition);
+    resolve(stmt.body);
+    if (stmt.increment != null) resolve(stmt.increment);
+
+    checkCounted(stmt);
+    stmt.slots = endScope();
+    return null;
+  }
+
+  // Marks a loop of the form "for (var i = a; i < b; i = i + c)", with
+  // any comparison, "+" or "-", and a number for c, as counted if only
+  // the loop itself assigns i and no closure captures it. Then i can be
+  // kept unboxed, and only stored when something reads it.
+  private void checkCounted(Stmt.For stmt) {
+    if (!(stmt.initializer instanceof Stmt.Var) ||
+        !(stmt.condition instanceof Expr.Binary) ||
+        !(stmt.increment instanceof Expr.Assign)) {
+      return;
+    }
+
+    Stmt.Var declaration = (Stmt.Var)stmt.initializer;
+    Local counter = scopes.peek().get(declaration.name.lexeme);
+    if (declaration.initializer == null || counter == null ||
+        counter.declaration != declaration || counter.isCaptured) {
+      return;
+    }
+
+    Expr.Binary condition = (Expr.Binary)stmt.condition;
+    switch (condition.operator.type) {
+      case GREATER: case GREATER_EQUAL: case LESS: case LESS_EQUAL:
+        break;
+      default:
+        return;
+    }
+
+    Expr.Assign increment = (Expr.Assign)stmt.increment;
+    if (!(increment.value instanceof Expr.Binary)) return;
+    Expr.Binary next = (Expr.Binary)increment.value;
+    TokenType operator = next.operator.type;
+    if (operator != TokenType.PLUS && operator != TokenType.MINUS) return;
+    if (!(next.right instanceof Expr.Literal) ||
+        !(((Expr.Literal)next.right).value instanceof Double)) {
+      return;
+    }
+
+    List<Expr> references = counter.references;
+    if (!references.contains(condition.left) ||
+        !references.contains(increment) ||
+        !references.contains(next.left)) {
+      return;
+    }
+
+    boolean reads = false;
+    for (Expr reference : references) {
+      if (reference == condition.left || reference == increment ||
+          reference == next.left) {
+        continue;
+      }
+      // Assigned somewhere else.
+      if (!(reference instanceof Expr.Variable)) return;
+      reads = true;
+    }
+
+    double step = (double)((Expr.Literal)next.right).value;
+    stmt.isCounted = true;
+    stmt.readsCounter = reads;
+    stmt.step = operator == TokenType.PLUS ? step : -step;
+  }
+
   @Override
   public Void visitFunctionStmt(Stmt.Function stmt) {
-    declare(stmt.name);
+    stmt.slot = declare(stmt.name, stmt);
     define(stmt.name);
 
     resolveFunction(stmt, FunctionType.FUNCTION);
@@ -129,6 +262,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       }
 
       resolve(stmt.value);
+      // The caller's frame is finished with once the callee is known and
+      // the arguments are evaluated, so the call can replace it. The
+      // engines take the call from the value itself, so "return (f());"
+      // only counts once Optimizer has removed the grouping, which
+      // recomputes this.
+      stmt.isTailCall = stmt.value instanceof Expr.Call;
     }
 
     return null;
@@ -136,7 +275,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitVarStmt(Stmt.Var stmt) {
-    declare(stmt.name);
+    stmt.slot = declare(stmt.name, stmt);
     if (stmt.initializer != null) {
       resolve(stmt.initializer);
     }
@@ -154,7 +293,9 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitAssignExpr(Expr.Assign expr) {
     resolve(expr.value);
-    resolveLocal(expr, expr.name);
+    if (!resolveLocal(expr, expr.name)) {
+      reboundGlobals.add(expr.name.lexeme);
+    }
     return null;
   }
 
@@ -217,7 +358,16 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
           "Can't use 'super' in a class with no superclass.");
     }
 
-    resolveLocal(expr, expr.keyword);
+    // "super" is declared around the methods, so they always capture it.
+    // The receiver is found by a "this" expression of its own.
+    Local local = resolveLocal(expr.keyword);
+    if (local != null) {
+      expr.depth = capturesDepth();
+      expr.slot = capture(function, local, expr.keyword);
+      expr.receiver = new Expr.This(new Token(TokenType.THIS, "this",
+                                              null, expr.keyword.line));
+      resolve(expr.receiver);
+    }
     return null;
   }
 
@@ -242,7 +392,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitVariableExpr(Expr.Variable expr) {
     if (!scopes.isEmpty() &&
-        scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
+        scopes.peek().containsKey(expr.name.lexeme) &&
+        !scopes.peek().get(expr.name.lexeme).defined) {
       Lox.error(expr.name,
           "Can't read local variable in its own initializer.");
     }
@@ -263,48 +414,213 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       Stmt.Function function, FunctionType type) {
     FunctionType enclosingFunction = currentFunction;
     currentFunction = type;
-
-    beginScope();
+    FunctionScope enclosingScope = this.function;
+    beginFrame();
+    this.function = new FunctionScope(function, enclosingScope,
+                                      frames.size() - 1);
+    function.captures = new ArrayList<>();
+
+    // A method's receiver is passed in the first slot of its frame, so
+    // calling a method needs no environment of its own to hold "this".
+    if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+      declareSynthetic("this");
+      function.isMethod = true;
+    }
     for (Token param : function.params) {
-      declare(param);
+      declare(param, null);
       define(param);
     }
     resolve(function.body);
-    endScope();
+
+    // Parameters have no declaration to mark, so the function boxes the
+    // captured ones itself on entry.
+    List<Integer> captured = new ArrayList<>();
+    for (Local local : scopes.peek().values()) {
+      if (local.isCaptured && local.declaration == null) {
+        captured.add(local.slot);
+      }
+    }
+    function.capturedParams = new int[captured.size()];
+    for (int i = 0; i < captured.size(); i++) {
+      function.capturedParams[i] = captured.get(i);
+    }
+
+    function.slots = endScope();
     currentFunction = enclosingFunction;
+    this.function = enclosingScope;
   }
 
   private void beginScope() {
-    scopes.push(new HashMap<String, Boolean>());
+    scopes.push(new HashMap<String, Local>());
+  }
+
+  private void beginFrame() {
+    beginScope();
+    frames.push(new Frame(scopes.size() - 1));
   }
 
-  private void endScope() {
-    scopes.pop();
+  // Returns the number of slots the scope's environment needs if it
+  // opened a frame, and 0 if its locals are in an enclosing one.
+  private int endScope() {
+    Map<String, Local> scope = scopes.pop();
+    for (Local local : scope.values()) {
+      if (local.isCaptured) moveToCell(local);
+    }
+
+    Frame frame = frames.peek();
+    if (frame.scope == scopes.size()) {
+      frames.pop();
+      return frame.size;
+    }
+
+    frame.next -= scope.size();
+    return 0;
   }
 
-  private void declare(Token name) {
-    if (scopes.isEmpty()) return;
+  // Marks everything that stores or reads a captured local as going
+  // through its cell.
+  private static void moveToCell(Local local) {
+    for (Expr reference : local.references) {
+      if (reference instanceof Expr.Variable) {
+        ((Expr.Variable)reference).inCell = true;
+      } else if (reference instanceof Expr.Assign) {
+        ((Expr.Assign)reference).inCell = true;
+      } else {
+        ((Expr.This)reference).inCell = true;
+      }
+    }
+
+    if (local.declaration instanceof Stmt.Var) {
+      ((Stmt.Var)local.declaration).isCaptured = true;
+    } else if (local.declaration instanceof Stmt.Function) {
+      ((Stmt.Function)local.declaration).isCaptured = true;
+    } else if (local.declaration instanceof Stmt.Class) {
+      ((Stmt.Class)local.declaration).isCaptured = true;
+    }
+  }
+
+  // Returns the slot the local is given in its frame, or -1 for a
+  // global.
+  private int declare(Token name, Stmt declaration) {
+    if (scopes.isEmpty()) {
+      if (!declaredGlobals.add(name.lexeme)) {
+        reboundGlobals.add(name.lexeme);
+      }
+      return -1;
+    }
 
-    Map<String, Boolean> scope = scopes.peek();
+    Map<String, Local> scope = scopes.peek();
     if (scope.containsKey(name.lexeme)) {
       Lox.error(name,
           "Already a variable with this name in this scope.");
+      return -1;
     }
 
-    scope.put(name.lexeme, false);
+    Local local = newLocal(declaration);
+    scope.put(name.lexeme, local);
+    return local.slot;
+  }
+
+  private Local newLocal(Stmt declaration) {
+    Frame frame = frames.peek();
+    Local local = new Local(frames.size() - 1, frame.next++, declaration);
+    frame.size = Math.max(frame.size, frame.next);
+    return local;
   }
 
   private void define(Token name) {
     if (scopes.isEmpty()) return;
-    scopes.peek().put(name.lexeme, true);
+    scopes.peek().get(name.lexeme).defined = true;
   }
 
-  private void resolveLocal(Expr expr, Token name) {
+  private void declareSynthetic(String name) {
+    Local local = newLocal(null);
+    local.defined = true;
+    scopes.peek().put(name, local);
+  }
+
+  private Local resolveLocal(Token name) {
     for (int i = scopes.size() - 1; i >= 0; i--) {
-      if (scopes.get(i).containsKey(name.lexeme)) {
-        interpreter.resolve(expr, scopes.size() - 1 - i);
-        return;
-      }
+      Local local = scopes.get(i).get(name.lexeme);
+      if (local != null) return local;
+    }
+
+    // Not found. Assume it is global.
+    return null;
+  }
+
+  // Resolves a variable, "this" or assignment to a local, returning
+  // false if the name is global. A local of an enclosing function is
+  // reached through the current function's captures.
+  private boolean resolveLocal(Expr expr, Token name) {
+    Local local = resolveLocal(name);
+    if (local == null) return false;
+
+    int depth = frames.size() - 1 - local.frame;
+    int slot = local.slot;
+    boolean inCell = false;
+    int capture = capture(function, local, name);
+    if (capture != -1) {
+      depth = capturesDepth();
+      slot = capture;
+      inCell = true;
+    } else {
+      local.references.add(expr);
+    }
+
+    if (expr instanceof Expr.Variable) {
+      Expr.Variable variable = (Expr.Variable)expr;
+      variable.depth = depth;
+      variable.slot = slot;
+      variable.inCell = inCell;
+    } else if (expr instanceof Expr.Assign) {
+      Expr.Assign assign = (Expr.Assign)expr;
+      assign.depth = depth;
+      assign.slot = slot;
+      assign.inCell = inCell;
+    } else {
+      Expr.This self = (Expr.This)expr;
+      self.depth = depth;
+      self.slot = slot;
+      self.inCell = inCell;
     }
+    return true;
+  }
+
+  // How far the current function's captures are from the innermost
+  // frame: they enclose its own.
+  private int capturesDepth() {
+    return frames.size() - function.frame;
+  }
+
+  // Returns where a local declared outside the function is among its
+  // captures, adding it there and to every function in between as
+  // needed, or -1 if the local is the function's own. Captures are
+  // resolved in the frame declaring the function, since that is where
+  // its closures are created.
+  private static int capture(FunctionScope function, Local local,
+                             Token name) {
+    if (function == null || local.frame >= function.frame) return -1;
+
+    Integer index = function.captures.get(local);
+    if (index != null) return index;
+
+    int declaringFrame = function.frame - 1;
+    Expr.Variable variable = new Expr.Variable(name);
+    variable.inCell = true;
+    int outer = capture(function.enclosing, local, name);
+    if (outer == -1) {
+      variable.depth = declaringFrame - local.frame;
+      variable.slot = local.slot;
+      local.isCaptured = true;
+    } else {
+      variable.depth = declaringFrame - function.enclosing.frame + 1;
+      variable.slot = outer;
+    }
+
+    List<Expr.Variable> captures = function.declaration.captures;
+    captures.add(variable);
+    function.captures.put(local, captures.size() - 1);
+    return captures.size() - 1;
   }
 }
@@ -1,56 +1,55 @@
 package jlox;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.ByteBuffer;
 
 import static jlox.TokenType.*;
 
+// Scans UTF-8 source a byte at a time. Outside string literals and
+// comments Lox is all ASCII, so no byte has to be decoded to scan it.
 class Scanner {
-  private static final Map<String, TokenType> keywords;
-
-  static {
-    keywords = new HashMap<>();
-    keywords.put("and",    AND);
-    keywords.put("class",  CLASS);
-    keywords.put("else",   ELSE);
-    keywords.put("false",  FALSE);
-    keywords.put("for",    FOR);
-    keywords.put("fun",    FUN);
-    keywords.put("if",     IF);
-    keywords.put("nil",    NIL);
-    keywords.put("or",     OR);
-    keywords.put("print",  PRINT);
-    keywords.put("return", RETURN);
-    keywords.put("super",  SUPER);
-    keywords.put("this",   THIS);
-    keywords.put("true",   TRUE);
-    keywords.put("var",    VAR);
-    keywords.put("while",  WHILE);
-  }
-
-  private final String source;
-  private final List<Token> tokens = new ArrayList<>();
+  private final ByteBuffer source;
+  private final int length;
+  private TokenBuffer tokens;
   private int start = 0;
   private int current = 0;
   private int line = 1;
 
-  Scanner(String source) {
+  Scanner(ByteBuffer source) {
     this.source = source;
+    this.length = source.limit();
   }
 
-  List<Token> scanTokens() {
+  TokenBuffer scanTokens() {
+    tokens = new TokenBuffer(source, null);
     while (!isAtEnd()) {
       // We are at the beginning of the next lexeme.
       start = current;
       scanToken();
     }
 
-    tokens.add(new Token(EOF, "", null, line));
+    tokens.add(EOF, current, current, line);
     return tokens;
   }
 
+  // Returns the buffer before anything is scanned, so that parsing can
+  // start right away. The buffer calls scanTo() whenever the parser reads
+  // past what has been scanned so far.
+  TokenBuffer scanLazily() {
+    tokens = new TokenBuffer(source, this);
+    return tokens;
+  }
+
+  void scanTo(int index) {
+    while (index >= tokens.size()) {
+      if (isAtEnd()) {
+        tokens.add(EOF, current, current, line);
+      } else {
+        start = current;
+        scanToken();
+      }
+    }
+  }
+
   private void scanToken() {
     char c = advance();
     switch (c) {
@@ -104,6 +103,8 @@ class Scanner {
           identifier();
         } else {
           Lox.error(line, "Unexpected character.");
+          // Report a multi-byte character once, not once per byte.
+          while ((peek() & 0xc0) == 0x80) advance();
         }
         break;
     }
@@ -112,10 +113,54 @@ class Scanner {
   private void identifier() {
     while (isAlphaNumeric(peek())) advance();
 
-    String text = source.substring(start, current);
-    TokenType type = keywords.get(text);
-    if (type == null) type = IDENTIFIER;
-    addToken(type);
+    addToken(identifierType());
+  }
+
+  // Recognizes keywords by walking a trie of their letters, so that no
+  // lexeme has to be made to look one up.
+  private TokenType identifierType() {
+    switch (charAt(start)) {
+      case 'a': return checkKeyword(1, "nd", AND);
+      case 'c': return checkKeyword(1, "lass", CLASS);
+      case 'e': return checkKeyword(1, "lse", ELSE);
+      case 'f':
+        if (current - start > 1) {
+          switch (charAt(start + 1)) {
+            case 'a': return checkKeyword(2, "lse", FALSE);
+            case 'o': return checkKeyword(2, "r", FOR);
+            case 'u': return checkKeyword(2, "n", FUN);
+          }
+        }
+        break;
+      case 'i': return checkKeyword(1, "f", IF);
+      case 'n': return checkKeyword(1, "il", NIL);
+      case 'o': return checkKeyword(1, "r", OR);
+      case 'p': return checkKeyword(1, "rint", PRINT);
+      case 'r': return checkKeyword(1, "eturn", RETURN);
+      case 's': return checkKeyword(1, "uper", SUPER);
+      case 't':
+        if (current - start > 1) {
+          switch (charAt(start + 1)) {
+            case 'h': return checkKeyword(2, "is", THIS);
+            case 'r': return checkKeyword(2, "ue", TRUE);
+          }
+        }
+        break;
+      case 'v': return checkKeyword(1, "ar", VAR);
+      case 'w': return checkKeyword(1, "hile", WHILE);
+    }
+
+    return IDENTIFIER;
+  }
+
+  private TokenType checkKeyword(int offset, String rest, TokenType type) {
+    if (current - start != offset + rest.length()) return IDENTIFIER;
+
+    for (int i = 0; i < rest.length(); i++) {
+      if (charAt(start + offset + i) != rest.charAt(i)) return IDENTIFIER;
+    }
+
+    return type;
   }
 
   private void number() {
@@ -129,8 +174,8 @@ class Scanner {
       while (isDigit(peek())) advance();
     }
 
-    addToken(NUMBER,
-        Double.parseDouble(source.substring(start, current)));
+    // TokenBuffer works out the value if the parser asks for it.
+    addToken(NUMBER);
   }
 
   private void string() {
@@ -147,14 +192,12 @@ class Scanner {
     // The closing ".
     advance();
 
-    // Trim the surrounding quotes.
-    String value = source.substring(start + 1, current - 1);
-    addToken(STRING, value);
+    addToken(STRING);
   }
 
   private boolean match(char expected) {
     if (isAtEnd()) return false;
-    if (source.charAt(current) != expected) return false;
+    if (charAt(current) != expected) return false;
 
     current++;
     return true;
@@ -162,12 +205,12 @@ class Scanner {
 
   private char peek() {
     if (isAtEnd()) return '\0';
-    return source.charAt(current);
+    return charAt(current);
   }
 
   private char peekNext() {
-    if (current + 1 >= source.length()) return '\0';
-    return source.charAt(current + 1);
+    if (current + 1 >= length) return '\0';
+    return charAt(current + 1);
   }
 
   private boolean isAlpha(char c) {
@@ -185,19 +228,20 @@ class Scanner {
   }
 
   private boolean isAtEnd() {
-    return current >= source.length();
+    return current >= length;
   }
 
   private char advance() {
-    return source.charAt(current++);
+    return charAt(current++);
   }
 
-  private void addToken(TokenType type) {
-    addToken(type, null);
+  // Bytes outside ASCII come back as chars 0x80 to 0xff, which nothing
+  // but a string or comment accepts.
+  private char charAt(int index) {
+    return (char)(source.get(index) & 0xff);
   }
 
-  private void addToken(TokenType type, Object literal) {
-    String text = source.substring(start, current);
-    tokens.add(new Token(type, text, literal, line));
+  private void addToken(TokenType type) {
+    tokens.add(type, start, current, line);
   }
 }
@@ -0,0 +1,54 @@
+package jlox;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+// The layout of a LoxInstance: the index in its values array of each
+// field. Instances of a class that get the same fields assigned in the
+// same order share a shape, found by following the same transitions from
+// the class's empty shape. Since a shape belongs to one class, property
+// sites can cache both field indices and methods by shape identity.
+class Shape {
+  private static final String[] NO_NAMES = new String[0];
+
+  final LoxClass klass;
+  // The field names in index order. Names are interned, so finding one is
+  // a scan of identity compares; see Symbols.
+  private final String[] names;
+  private final Map<String, Shape> transitions = new IdentityHashMap<>();
+
+  Shape(LoxClass klass) {
+    this(klass, NO_NAMES);
+  }
+
+  private Shape(LoxClass klass, String[] names) {
+    this.klass = klass;
+    this.names = names;
+  }
+
+  int size() {
+    return names.length;
+  }
+
+  int indexOf(String name) {
+    for (int i = 0; i < names.length; i++) {
+      if (names[i] == name) return i;
+    }
+
+    return -1;
+  }
+
+  // The shape after adding a field this one does not have.
+  Shape withField(String name) {
+    Shape next = transitions.get(name);
+    if (next == null) {
+      String[] nextNames = Arrays.copyOf(names, names.length + 1);
+      nextNames[names.length] = name;
+      next = new Shape(klass, nextNames);
+      transitions.put(name, next);
+    }
+
+    return next;
+  }
+}
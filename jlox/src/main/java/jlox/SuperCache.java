@@ -0,0 +1,24 @@
+package jlox;
+
+// Remembers the method a super.method site resolved to. The superclass a
+// site sees only changes when its class declaration runs again, so one
+// entry is enough.
+class SuperCache {
+  private LoxClass superclass;
+  private LoxFunction method;
+
+  LoxFunction find(LoxClass superclass, Token name) {
+    if (superclass != this.superclass) {
+      LoxFunction method = superclass.findMethod(name.lexeme);
+      if (method == null) {
+        throw new RuntimeError(name,
+            "Undefined property '" + name.lexeme + "'.");
+      }
+
+      this.superclass = superclass;
+      this.method = method;
+    }
+
+    return method;
+  }
+}
@@ -0,0 +1,80 @@
+package jlox;
+
+import java.nio.ByteBuffer;
+
+// Interns identifiers, so each name is stored once however often the
+// source repeats it, and every occurrence of a name is the same String:
+// Shape and LoxClass compare names by identity. The table is keyed by a
+// range of the source, so a name seen before costs no allocation. It is
+// never emptied, which is why literals and other lexemes stay out of it.
+final class Symbols {
+  private static String[] table = new String[1024];
+  private static int count = 0;
+
+  static {
+    // The one name the runtime looks up by a Java literal.
+    add("init");
+  }
+
+  private Symbols() {}
+
+  // Synchronized so that sources can be scanned on any thread. The lock
+  // is uncontended in practice. Identifiers are ASCII, so each byte of
+  // the range is one char.
+  static synchronized String intern(ByteBuffer source, int start,
+                                    int end) {
+    int length = end - start;
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + source.get(i);
+    }
+
+    int mask = table.length - 1;
+    int index = hash & mask;
+    for (String symbol = table[index]; symbol != null;
+         symbol = table[index]) {
+      // String caches its hash, which is the same one computed above.
+      if (symbol.hashCode() == hash && symbol.length() == length &&
+          matches(symbol, source, start)) {
+        return symbol;
+      }
+      index = (index + 1) & mask;
+    }
+
+    char[] chars = new char[length];
+    for (int i = 0; i < length; i++) {
+      chars[i] = (char)source.get(start + i);
+    }
+
+    String symbol = new String(chars);
+    table[index] = symbol;
+    if (++count * 2 > table.length) grow();
+    return symbol;
+  }
+
+  private static void add(String symbol) {
+    int mask = table.length - 1;
+    int index = symbol.hashCode() & mask;
+    while (table[index] != null) index = (index + 1) & mask;
+    table[index] = symbol;
+    count++;
+  }
+
+  private static boolean matches(String symbol, ByteBuffer source,
+                                 int start) {
+    for (int i = 0; i < symbol.length(); i++) {
+      if (symbol.charAt(i) != source.get(start + i)) return false;
+    }
+
+    return true;
+  }
+
+  private static void grow() {
+    String[] old = table;
+    table = new String[old.length * 2];
+    count = 0;
+    for (String symbol : old) {
+      if (symbol != null) add(symbol);
+    }
+  }
+}
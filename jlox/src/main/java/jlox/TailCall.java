@@ -0,0 +1,18 @@
+package jlox;
+
+// What a function completes with when it ends in "return f(...)" and f is
+// a Lox function: the call, with the callee and arguments evaluated but
+// not yet run. LoxFunction runs it once the returning function's frame is
+// gone, so a chain of tail calls runs in constant Java stack.
+class TailCall {
+  final LoxFunction function;
+  final LoxInstance receiver;
+  final Object[] arguments;
+
+  TailCall(LoxFunction function, LoxInstance receiver,
+           Object[] arguments) {
+    this.function = function;
+    this.receiver = receiver;
+    this.arguments = arguments;
+  }
+}
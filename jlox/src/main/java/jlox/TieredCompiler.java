@@ -0,0 +1,148 @@
+package jlox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Runs everything in the tree-walking interpreter first and compiles only
+// the functions that get hot, on a background thread so the program keeps
+// running meanwhile. A function goes to JVM bytecode if JvmCompiler can
+// handle it and to a ClosureCompiler executor tree otherwise. The new code
+// is picked up on the next call; activations already being interpreted
+// finish in the interpreter.
+//
+// Compiled code speculates that the globals it reads keep their values,
+// which turns calls to global functions into a field load. Storing to
+// such a global deoptimizes every function that assumed it: the cached
+// values are cleared, later calls go back to the interpreter, and the
+// global is never speculated on again.
+class TieredCompiler {
+  static final int INVOCATION_THRESHOLD = 1000;
+  static final int BACK_EDGE_THRESHOLD = 10000;
+
+  private final boolean trace;
+  private final ExecutorService executor =
+      Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "lox-compiler");
+        thread.setDaemon(true);
+        return thread;
+      });
+
+  // Only used on the compiler thread.
+  private final JvmCompiler jvm;
+  private final ClosureCompiler closures;
+
+  private final Set<String> unstableGlobals =
+      ConcurrentHashMap.newKeySet();
+  // The speculations that have cached each global. Only used on the
+  // interpreter's thread.
+  private final Map<String, Set<Speculation>> watchers = new HashMap<>();
+
+  static final class Speculation {
+    private final TieredCompiler tiers;
+    private final FunctionProfile profile;
+    // One entry per global the code reads, null until first read.
+    Object[] values;
+
+    private Speculation(TieredCompiler tiers, FunctionProfile profile) {
+      this.tiers = tiers;
+      this.profile = profile;
+    }
+
+    boolean isStable(String name) {
+      return !tiers.unstableGlobals.contains(name);
+    }
+
+    void watch(String name) {
+      tiers.watchers.computeIfAbsent(name, key -> new HashSet<>())
+          .add(this);
+    }
+  }
+
+  TieredCompiler(Interpreter interpreter, boolean trace) {
+    this.jvm = new JvmCompiler(interpreter);
+    this.closures = new ClosureCompiler(interpreter);
+    this.trace = trace;
+  }
+
+  void submit(FunctionProfile profile) {
+    int invocations = profile.invocations;
+    int backEdges = profile.backEdges;
+    executor.execute(() -> compile(profile, invocations, backEdges));
+  }
+
+  private void compile(FunctionProfile profile,
+                       int invocations, int backEdges) {
+    String name = profile.declaration.name.lexeme;
+    long start = System.nanoTime();
+
+    Speculation speculation = new Speculation(this, profile);
+    JvmFunction code;
+    String tier = "jvm";
+    try {
+      code = jvm.compile(profile.declaration, speculation);
+      if (code == null) {
+        tier = "closure";
+        code = closureTier(profile.declaration);
+      }
+    } catch (RuntimeException error) {
+      trace("%s: compile failed, staying interpreted (%s)", name, error);
+      return;
+    }
+
+    profile.install(code, speculation);
+    trace("%s: %s tier after %d calls and %d loop iterations, " +
+        "compiled in %.2f ms", name, tier, invocations, backEdges,
+        (System.nanoTime() - start) / 1e6);
+  }
+
+  private JvmFunction closureTier(Stmt.Function declaration) {
+    ClosureCompiler.StmtNode body =
+        closures.compileFunctionBody(declaration);
+    return (interpreter, closure, receiver, arguments) -> {
+      Environment environment =
+          interpreter.acquire(closure, declaration.slots);
+      if (declaration.isMethod) environment.define(receiver);
+      for (Object argument : arguments) {
+        environment.define(argument);
+      }
+      for (int slot : declaration.capturedParams) {
+        environment.set(slot, new Cell(environment.get(slot)));
+      }
+
+      try {
+        Object completion = body.execute(environment);
+        return completion == Interpreter.NORMAL ? null : completion;
+      } finally {
+        interpreter.release();
+      }
+    };
+  }
+
+  void globalChanged(String name) {
+    if (watchers.isEmpty()) return;
+
+    Set<Speculation> broken = watchers.remove(name);
+    if (broken == null) return;
+
+    unstableGlobals.add(name);
+    for (Speculation speculation : broken) {
+      Arrays.fill(speculation.values, null);
+      if (speculation.profile.deoptimize(speculation)) {
+        trace("%s: deoptimized, global '%s' changed",
+            speculation.profile.declaration.name.lexeme, name);
+      }
+    }
+  }
+
+  private void trace(String format, Object... arguments) {
+    if (trace) {
+      System.err.println("[tiers] " + String.format(format, arguments));
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package jlox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static jlox.TokenType.*;
+
+// The scanner's output, kept in parallel arrays so that scanning makes no
+// object per token. Lexemes and literal values stay in the source until
+// the parser asks for a Token, which it only does for the tokens it
+// keeps in the AST or reports errors at.
+class TokenBuffer {
+  private static final TokenType[] TYPES = TokenType.values();
+  // Longer integers may not be exact in a long or a double, so they are
+  // left to Double.parseDouble().
+  private static final int MAX_FAST_DIGITS = 15;
+  // The lexeme of each type other than the literals, which is always
+  // spelled the same. Filled in as each type is first seen.
+  private static final String[] spellings = new String[TYPES.length];
+  private static final int INITIAL_CAPACITY = 256;
+
+  // UTF-8, which only string literals are decoded from: the rest of Lox's
+  // syntax is ASCII.
+  private final ByteBuffer source;
+  private int[] types;
+  private int[] starts;
+  private int[] lengths;
+  private int[] lines;
+  // Tokens are numbered from the start of the source. The arrays begin
+  // at token base, which only moves when scanning lazily.
+  private int base = 0;
+  private int count = 0;
+  // Set if tokens are scanned only once the parser asks for them; see
+  // Scanner.scanLazily(). The parser never looks further back than the
+  // token before the one it asks for, so the tokens before that are
+  // dropped to make room instead of growing the arrays.
+  private final Scanner scanner;
+  private int oldestNeeded = 0;
+
+  TokenBuffer(ByteBuffer source, Scanner scanner) {
+    this.source = source;
+    this.scanner = scanner;
+
+    // Scripts take a few bytes per token, so scanning all of it up front
+    // rarely has to grow the arrays. Scanning lazily, only a window of
+    // tokens is ever live.
+    int capacity = scanner == null
+        ? Math.max(INITIAL_CAPACITY, source.limit() / 4)
+        : INITIAL_CAPACITY;
+    types = new int[capacity];
+    starts = new int[capacity];
+    lengths = new int[capacity];
+    lines = new int[capacity];
+  }
+
+  void add(TokenType type, int start, int end, int line) {
+    if (count - base == types.length) makeRoom();
+
+    int slot = count - base;
+    types[slot] = type.ordinal();
+    starts[slot] = start;
+    lengths[slot] = end - start;
+    lines[slot] = line;
+    count++;
+  }
+
+  private void makeRoom() {
+    int drop = scanner == null ? 0 : oldestNeeded - base;
+    int live = count - base - drop;
+    // Grow unless dropping frees at least half the arrays.
+    int capacity = live * 2 > types.length ? types.length * 2
+                                           : types.length;
+    types = move(types, drop, live, capacity);
+    starts = move(starts, drop, live, capacity);
+    lengths = move(lengths, drop, live, capacity);
+    lines = move(lines, drop, live, capacity);
+    base += drop;
+  }
+
+  private static int[] move(int[] array, int from, int length,
+                            int capacity) {
+    if (from == 0) return Arrays.copyOf(array, capacity);
+
+    int[] target = capacity == array.length ? array : new int[capacity];
+    System.arraycopy(array, from, target, 0, length);
+    return target;
+  }
+
+  int size() {
+    return count;
+  }
+
+  TokenType type(int index) {
+    if (index >= count) {
+      oldestNeeded = Math.max(base, index - 1);
+      scanner.scanTo(index);
+    }
+    return TYPES[types[index - base]];
+  }
+
+  Token token(int index) {
+    TokenType type = type(index);
+    int start = starts[index - base];
+    int end = start + lengths[index - base];
+
+    Object literal = null;
+    if (type == NUMBER) {
+      literal = number(start, end);
+    } else if (type == STRING) {
+      // Trim the surrounding quotes.
+      literal = decode(start + 1, end - 1);
+    }
+
+    return new Token(type, lexeme(type, start, end), literal,
+                     lines[index - base]);
+  }
+
+  private String lexeme(TokenType type, int start, int end) {
+    if (type == IDENTIFIER) return Symbols.intern(source, start, end);
+    if (type == STRING || type == NUMBER) return decode(start, end);
+
+    String lexeme = spellings[type.ordinal()];
+    if (lexeme == null) {
+      lexeme = decode(start, end);
+      spellings[type.ordinal()] = lexeme;
+    }
+
+    return lexeme;
+  }
+
+  private double number(int start, int end) {
+    if (end - start > MAX_FAST_DIGITS) {
+      return Double.parseDouble(decode(start, end));
+    }
+
+    long value = 0;
+    for (int i = start; i < end; i++) {
+      byte c = source.get(i);
+      if (c == '.') return Double.parseDouble(decode(start, end));
+      value = value * 10 + (c - '0');
+    }
+
+    return value;
+  }
+
+  private String decode(int start, int end) {
+    byte[] bytes = new byte[end - start];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = source.get(start + i);
+    }
+
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,433 @@
+package jlox.classfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static jlox.classfile.Opcodes.*;
+
+// A minimal writer for JVM class files, enough to generate code at runtime
+// without a bytecode library. It writes version 49 class files, which the
+// JVM verifies by type inference, so no StackMapTable frames have to be
+// computed. Stack depth is tracked as instructions are emitted to produce
+// max_stack.
+public final class ClassWriter {
+  public static final int ACC_PUBLIC = 0x0001;
+  public static final int ACC_PRIVATE = 0x0002;
+  public static final int ACC_STATIC = 0x0008;
+  public static final int ACC_FINAL = 0x0010;
+  public static final int ACC_SUPER = 0x0020;
+
+  private static final int VERSION = 49;
+
+  private static final int CONSTANT_UTF8 = 1;
+  private static final int CONSTANT_INTEGER = 3;
+  private static final int CONSTANT_DOUBLE = 6;
+  private static final int CONSTANT_CLASS = 7;
+  private static final int CONSTANT_STRING = 8;
+  private static final int CONSTANT_FIELDREF = 9;
+  private static final int CONSTANT_METHODREF = 10;
+  private static final int CONSTANT_INTERFACE_METHODREF = 11;
+  private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+  // Stack effect of each operand-less instruction, indexed by opcode.
+  private static final int[] STACK_EFFECT = new int[256];
+
+  static {
+    STACK_EFFECT[ACONST_NULL] = 1;
+    for (int i = 0; i <= 5; i++) STACK_EFFECT[ICONST_0 + i] = 1;
+    STACK_EFFECT[AALOAD] = -1;
+    STACK_EFFECT[AASTORE] = -3;
+    STACK_EFFECT[POP] = -1;
+    STACK_EFFECT[POP2] = -2;
+    STACK_EFFECT[DUP] = 1;
+    STACK_EFFECT[DUP_X1] = 1;
+    STACK_EFFECT[DUP_X2] = 1;
+    STACK_EFFECT[DUP2] = 2;
+    STACK_EFFECT[SWAP] = 0;
+    STACK_EFFECT[DADD] = -2;
+    STACK_EFFECT[DSUB] = -2;
+    STACK_EFFECT[DMUL] = -2;
+    STACK_EFFECT[DDIV] = -2;
+    STACK_EFFECT[DNEG] = 0;
+    STACK_EFFECT[IXOR] = -1;
+    STACK_EFFECT[DCMPL] = -3;
+    STACK_EFFECT[DCMPG] = -3;
+    STACK_EFFECT[IRETURN] = -1;
+    STACK_EFFECT[DRETURN] = -2;
+    STACK_EFFECT[ARETURN] = -1;
+    STACK_EFFECT[RETURN] = 0;
+    STACK_EFFECT[ATHROW] = -1;
+  }
+
+  private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  private final DataOutputStream poolOut = new DataOutputStream(pool);
+  private final Map<String, Integer> poolIndex = new HashMap<>();
+  private int poolCount = 1;
+
+  private final int thisClass;
+  private final int superClass;
+  private final int[] interfaces;
+  private final List<byte[]> fields = new ArrayList<>();
+  private final List<MethodWriter> methods = new ArrayList<>();
+
+  public ClassWriter(String name, String superName, String... interfaces) {
+    this.thisClass = classRef(name);
+    this.superClass = classRef(superName);
+    this.interfaces = new int[interfaces.length];
+    for (int i = 0; i < interfaces.length; i++) {
+      this.interfaces[i] = classRef(interfaces[i]);
+    }
+  }
+
+  public void field(int access, String name, String descriptor) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      out.writeShort(access);
+      out.writeShort(utf8(name));
+      out.writeShort(utf8(descriptor));
+      out.writeShort(0);
+    } catch (IOException error) {
+      throw new AssertionError(error);
+    }
+    fields.add(bytes.toByteArray());
+  }
+
+  public MethodWriter method(int access, String name, String descriptor) {
+    MethodWriter method = new MethodWriter(access, name, descriptor);
+    methods.add(method);
+    return method;
+  }
+
+  public byte[] toByteArray() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    try {
+      // Method bodies can add constants, so write them first.
+      List<byte[]> methodBytes = new ArrayList<>();
+      for (MethodWriter method : methods) {
+        methodBytes.add(method.toByteArray());
+      }
+
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(VERSION);
+      out.writeShort(poolCount);
+      pool.writeTo(out);
+      out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+      out.writeShort(thisClass);
+      out.writeShort(superClass);
+      out.writeShort(interfaces.length);
+      for (int index : interfaces) out.writeShort(index);
+      out.writeShort(fields.size());
+      for (byte[] field : fields) out.write(field);
+      out.writeShort(methodBytes.size());
+      for (byte[] method : methodBytes) out.write(method);
+      out.writeShort(0);
+    } catch (IOException error) {
+      throw new AssertionError(error);
+    }
+    return bytes.toByteArray();
+  }
+
+  // The constant pool. Entries are shared by a key describing them.
+
+  private int constant(String key, int slots, int tag, Object... parts) {
+    Integer index = poolIndex.get(key);
+    if (index != null) return index;
+
+    try {
+      poolOut.writeByte(tag);
+      for (Object part : parts) {
+        if (part instanceof String) {
+          poolOut.writeUTF((String)part);
+        } else if (part instanceof Double) {
+          poolOut.writeDouble((Double)part);
+        } else if (tag == CONSTANT_INTEGER) {
+          poolOut.writeInt((Integer)part);
+        } else {
+          poolOut.writeShort((Integer)part);
+        }
+      }
+    } catch (IOException error) {
+      throw new AssertionError(error);
+    }
+
+    int result = poolCount;
+    poolCount += slots;
+    if (poolCount > 0xffff) {
+      throw new IllegalStateException("Too many constants.");
+    }
+    poolIndex.put(key, result);
+    return result;
+  }
+
+  int utf8(String value) {
+    return constant("U" + value, 1, CONSTANT_UTF8, value);
+  }
+
+  int classRef(String name) {
+    return constant("C" + name, 1, CONSTANT_CLASS, utf8(name));
+  }
+
+  int string(String value) {
+    return constant("S" + value, 1, CONSTANT_STRING, utf8(value));
+  }
+
+  int integer(int value) {
+    return constant("I" + value, 1, CONSTANT_INTEGER, value);
+  }
+
+  int doubleValue(double value) {
+    long bits = Double.doubleToRawLongBits(value);
+    return constant("D" + bits, 2, CONSTANT_DOUBLE, value);
+  }
+
+  int nameAndType(String name, String descriptor) {
+    return constant("N" + name + ":" + descriptor, 1,
+        CONSTANT_NAME_AND_TYPE, utf8(name), utf8(descriptor));
+  }
+
+  int fieldRef(String owner, String name, String descriptor) {
+    return constant("F" + owner + "." + name + ":" + descriptor, 1,
+        CONSTANT_FIELDREF, classRef(owner), nameAndType(name, descriptor));
+  }
+
+  int methodRef(String owner, String name, String descriptor,
+                boolean isInterface) {
+    int tag = isInterface ? CONSTANT_INTERFACE_METHODREF
+                          : CONSTANT_METHODREF;
+    return constant("M" + tag + owner + "." + name + descriptor, 1, tag,
+        classRef(owner), nameAndType(name, descriptor));
+  }
+
+  // A jump target. Its stack depth is recorded by the first jump to it, so
+  // code following an unconditional transfer starts from the right depth.
+  public static final class Label {
+    private int position = -1;
+    private int stack = -1;
+  }
+
+  public final class MethodWriter {
+    private final int access;
+    private final int nameIndex;
+    private final int descriptorIndex;
+
+    private byte[] code = new byte[64];
+    private int length = 0;
+    // -1 after an unconditional transfer, until the next label.
+    private int stack = 0;
+    private int maxStack = 0;
+    private int maxLocals;
+
+    private final List<int[]> fixups = new ArrayList<>();
+    private final List<Label> fixupLabels = new ArrayList<>();
+
+    private MethodWriter(int access, String name, String descriptor) {
+      this.access = access;
+      this.nameIndex = utf8(name);
+      this.descriptorIndex = utf8(descriptor);
+      this.maxLocals = argumentSlots(descriptor) +
+          ((access & ACC_STATIC) != 0 ? 0 : 1);
+    }
+
+    public int size() {
+      return length;
+    }
+
+    public void op(int opcode) {
+      emit(opcode);
+      adjust(STACK_EFFECT[opcode]);
+      if (opcode == ARETURN || opcode == IRETURN || opcode == DRETURN ||
+          opcode == RETURN || opcode == ATHROW) {
+        stack = -1;
+      }
+    }
+
+    public void iconst(int value) {
+      if (value >= -1 && value <= 5) {
+        emit(ICONST_0 + value);
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        emit(BIPUSH);
+        emit(value);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        emit(SIPUSH);
+        emitShort(value);
+      } else {
+        ldcIndex(integer(value));
+        return;
+      }
+      adjust(1);
+    }
+
+    public void ldc(Object value) {
+      if (value instanceof Double) {
+        emit(LDC2_W);
+        emitShort(doubleValue((Double)value));
+        adjust(2);
+      } else {
+        ldcIndex(string((String)value));
+      }
+    }
+
+    private void ldcIndex(int index) {
+      if (index < 256) {
+        emit(LDC);
+        emit(index);
+      } else {
+        emit(LDC_W);
+        emitShort(index);
+      }
+      adjust(1);
+    }
+
+    public void varInsn(int opcode, int index) {
+      int size = opcode == DLOAD || opcode == DSTORE ? 2 : 1;
+      boolean load = opcode == ILOAD || opcode == DLOAD || opcode == ALOAD;
+      if (index > 255) {
+        throw new IllegalStateException("Too many local variables.");
+      }
+
+      emit(opcode);
+      emit(index);
+      adjust(load ? size : -size);
+      maxLocals = Math.max(maxLocals, index + size);
+    }
+
+    public void typeInsn(int opcode, String type) {
+      emit(opcode);
+      emitShort(classRef(type));
+      if (opcode == NEW) adjust(1);
+    }
+
+    public void fieldInsn(int opcode, String owner, String name,
+                          String descriptor) {
+      emit(opcode);
+      emitShort(fieldRef(owner, name, descriptor));
+
+      int size = typeSize(descriptor.charAt(0));
+      switch (opcode) {
+        case GETSTATIC: adjust(size); break;
+        case PUTSTATIC: adjust(-size); break;
+        case GETFIELD: adjust(size - 1); break;
+        case PUTFIELD: adjust(-size - 1); break;
+        default: throw new IllegalArgumentException("Not a field op.");
+      }
+    }
+
+    public void methodInsn(int opcode, String owner, String name,
+                           String descriptor) {
+      boolean isInterface = opcode == INVOKEINTERFACE;
+      emit(opcode);
+      emitShort(methodRef(owner, name, descriptor, isInterface));
+
+      int arguments = argumentSlots(descriptor);
+      if (opcode != INVOKESTATIC) arguments++;
+      if (isInterface) {
+        emit(arguments);
+        emit(0);
+      }
+
+      char result = descriptor.charAt(descriptor.indexOf(')') + 1);
+      adjust(typeSize(result) - arguments);
+    }
+
+    public void jump(int opcode, Label target) {
+      int position = length;
+      emit(opcode);
+      fixups.add(new int[] {position, length});
+      fixupLabels.add(target);
+      emitShort(0);
+
+      switch (opcode) {
+        case IF_ACMPEQ: case IF_ACMPNE: adjust(-2); break;
+        case GOTO: break;
+        default: adjust(-1); break;
+      }
+
+      if (target.stack == -1) target.stack = stack;
+      if (opcode == GOTO) stack = -1;
+    }
+
+    public void mark(Label label) {
+      label.position = length;
+      if (stack == -1) {
+        stack = label.stack == -1 ? 0 : label.stack;
+      } else if (label.stack == -1) {
+        label.stack = stack;
+      }
+    }
+
+    private void adjust(int delta) {
+      if (stack == -1) stack = 0;
+      stack += delta;
+      if (stack > maxStack) maxStack = stack;
+    }
+
+    private void emit(int value) {
+      if (length == code.length) code = Arrays.copyOf(code, length * 2);
+      code[length++] = (byte)value;
+    }
+
+    private void emitShort(int value) {
+      emit(value >> 8);
+      emit(value);
+    }
+
+    private byte[] toByteArray() throws IOException {
+      for (int i = 0; i < fixups.size(); i++) {
+        int[] fixup = fixups.get(i);
+        int offset = fixupLabels.get(i).position - fixup[0];
+        if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE) {
+          throw new IllegalStateException("Jump too far.");
+        }
+        code[fixup[1]] = (byte)(offset >> 8);
+        code[fixup[1] + 1] = (byte)offset;
+      }
+
+      int codeIndex = utf8("Code");
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeShort(access);
+      out.writeShort(nameIndex);
+      out.writeShort(descriptorIndex);
+      out.writeShort(1);
+      out.writeShort(codeIndex);
+      out.writeInt(12 + length);
+      out.writeShort(maxStack);
+      out.writeShort(maxLocals);
+      out.writeInt(length);
+      out.write(code, 0, length);
+      out.writeShort(0);
+      out.writeShort(0);
+      return bytes.toByteArray();
+    }
+  }
+
+  private static int typeSize(char type) {
+    switch (type) {
+      case 'V': return 0;
+      case 'D': case 'J': return 2;
+      default: return 1;
+    }
+  }
+
+  private static int argumentSlots(String descriptor) {
+    int slots = 0;
+    int i = 1;
+    while (descriptor.charAt(i) != ')') {
+      char type = descriptor.charAt(i);
+      slots += typeSize(type);
+      while (descriptor.charAt(i) == '[') i++;
+      if (descriptor.charAt(i) == 'L') i = descriptor.indexOf(';', i);
+      i++;
+    }
+    return slots;
+  }
+}
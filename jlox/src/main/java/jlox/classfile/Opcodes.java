@@ -0,0 +1,65 @@
+package jlox.classfile;
+
+// The subset of JVM instructions the writer knows how to emit.
+public final class Opcodes {
+  private Opcodes() {}
+
+  public static final int ACONST_NULL = 1;
+  public static final int ICONST_0 = 3;
+  public static final int BIPUSH = 16;
+  public static final int SIPUSH = 17;
+  public static final int LDC = 18;
+  public static final int LDC_W = 19;
+  public static final int LDC2_W = 20;
+  public static final int ILOAD = 21;
+  public static final int DLOAD = 24;
+  public static final int ALOAD = 25;
+  public static final int AALOAD = 50;
+  public static final int ISTORE = 54;
+  public static final int DSTORE = 57;
+  public static final int ASTORE = 58;
+  public static final int AASTORE = 83;
+  public static final int POP = 87;
+  public static final int POP2 = 88;
+  public static final int DUP = 89;
+  public static final int DUP_X1 = 90;
+  public static final int DUP_X2 = 91;
+  public static final int DUP2 = 92;
+  public static final int SWAP = 95;
+  public static final int DADD = 99;
+  public static final int DSUB = 103;
+  public static final int DMUL = 107;
+  public static final int DDIV = 111;
+  public static final int DNEG = 119;
+  public static final int IXOR = 130;
+  public static final int DCMPL = 151;
+  public static final int DCMPG = 152;
+  public static final int IFEQ = 153;
+  public static final int IFNE = 154;
+  public static final int IFLT = 155;
+  public static final int IFGE = 156;
+  public static final int IFGT = 157;
+  public static final int IFLE = 158;
+  public static final int IF_ACMPEQ = 165;
+  public static final int IF_ACMPNE = 166;
+  public static final int GOTO = 167;
+  public static final int IRETURN = 172;
+  public static final int DRETURN = 175;
+  public static final int ARETURN = 176;
+  public static final int RETURN = 177;
+  public static final int GETSTATIC = 178;
+  public static final int PUTSTATIC = 179;
+  public static final int GETFIELD = 180;
+  public static final int PUTFIELD = 181;
+  public static final int INVOKEVIRTUAL = 182;
+  public static final int INVOKESPECIAL = 183;
+  public static final int INVOKESTATIC = 184;
+  public static final int INVOKEINTERFACE = 185;
+  public static final int NEW = 187;
+  public static final int ANEWARRAY = 189;
+  public static final int ATHROW = 191;
+  public static final int CHECKCAST = 192;
+  public static final int INSTANCEOF = 193;
+  public static final int IFNULL = 198;
+  public static final int IFNONNULL = 199;
+}
@@ -12,33 +12,51 @@ public class GenerateAst {
       System.exit(64);
     }
     String outputDir = args[0];
+    // Fields after a '|' are not constructor parameters: they are
+    // filled in later by the resolver or the interpreter, so they are not
+    // final either.
     defineAst(outputDir, "Expr", Arrays.asList(
-      "Assign   : Token name, Expr value",
+      "Assign   : Token name, Expr value" +
+                " | int depth = -1, int slot, boolean inCell, Cell global",
       "Binary   : Expr left, Token operator, Expr right",
-      "Call     : Expr callee, Token paren, List<Expr> arguments",
-      "Get      : Expr object, Token name",
+      "Call     : Expr callee, Token paren, List<Expr> arguments" +
+                " | CallCache cache = new CallCache()",
+      "Get      : Expr object, Token name" +
+                " | PropertyCache cache = new PropertyCache()",
       "Grouping : Expr expression",
       "Literal  : Object value",
       "Logical  : Expr left, Token operator, Expr right",
-      "Set      : Expr object, Token name, Expr value",
-      "Super    : Token keyword, Token method",
-      "This     : Token keyword",
+      "Set      : Expr object, Token name, Expr value" +
+                " | PropertyCache cache = new PropertyCache()",
+      "Super    : Token keyword, Token method" +
+                " | int depth, int slot, Expr.This receiver," +
+                " SuperCache cache = new SuperCache()",
+      "This     : Token keyword | int depth, int slot, boolean inCell",
       "Unary    : Token operator, Expr right",
-      "Variable : Token name"
+      "Variable : Token name" +
+                " | int depth = -1, int slot, boolean inCell, Cell global"
     ));
 
     defineAst(outputDir, "Stmt", Arrays.asList(
-      "Block      : List<Stmt> statements",
+      "Block      : List<Stmt> statements | int slots",
       "Class      : Token name, Expr.Variable superclass," +
-                  " List<Stmt.Function> methods",
+                  " List<Stmt.Function> methods" +
+                  " | int slot, boolean isCaptured",
       "Expression : Expr expression",
+      "For        : Stmt initializer, Expr condition, Expr increment," +
+                  " Stmt body | int slots, boolean isCounted," +
+                  " boolean readsCounter, double step",
       "Function   : Token name, List<Token> params," +
-                  " List<Stmt> body",
+                  " List<Stmt> body" +
+                  " | int slot, int slots, boolean isMethod," +
+                  " boolean isCaptured," +
+                  " List<Expr.Variable> captures, int[] capturedParams",
       "If         : Expr condition, Stmt thenBranch," +
                   " Stmt elseBranch",
       "Print      : Expr expression",
-      "Return     : Token keyword, Expr value",
-      "Var        : Token name, Expr initializer",
+      "Return     : Token keyword, Expr value | boolean isTailCall",
+      "Var        : Token name, Expr initializer" +
+                  " | int slot, boolean isCaptured",
       "While      : Expr condition, Stmt body"
     ));
   }
@@ -53,7 +71,7 @@ public class GenerateAst {
     writer.println();
     writer.println("import java.util.List;");
     writer.println();
-    writer.println("abstract class " + baseName + " {");
+    writer.println("public abstract class " + baseName + " {");
 
     defineVisitor(writer, baseName, types);
 
@@ -61,13 +79,15 @@ public class GenerateAst {
     for (String type : types) {
       writer.println();
       String className = type.split(":")[0].trim();
-      String fields = type.split(":")[1].trim();
-      defineType(writer, baseName, className, fields);
+      String[] fields = type.split(":")[1].split("\\|");
+      String resolved = fields.length > 1 ? fields[1].trim() : null;
+      defineType(writer, baseName, className, fields[0].trim(),
+          resolved);
     }
 
     // The base accept() method.
     writer.println();
-    writer.println("  abstract <R> R accept(Visitor<R> visitor);");
+    writer.println("  public abstract <R> R accept(Visitor<R> visitor);");
 
     writer.println("}");
     writer.close();
@@ -75,7 +95,7 @@ public class GenerateAst {
 
   private static void defineVisitor(
       PrintWriter writer, String baseName, List<String> types) {
-    writer.println("  interface Visitor<R> {");
+    writer.println("  public interface Visitor<R> {");
 
     for (String type : types) {
       String typeName = type.split(":")[0].trim();
@@ -88,8 +108,8 @@ public class GenerateAst {
 
   private static void defineType(
       PrintWriter writer, String baseName,
-      String className, String fieldList) {
-    writer.println("  static class " + className + " extends " +
+      String className, String fieldList, String resolvedList) {
+    writer.println("  public static class " + className + " extends " +
         baseName + " {");
 
     // Constructor.
@@ -107,7 +127,7 @@ public class GenerateAst {
     // Visitor pattern.
     writer.println();
     writer.println("    @Override");
-    writer.println("    <R> R accept(Visitor<R> visitor) {");
+    writer.println("    public <R> R accept(Visitor<R> visitor) {");
     writer.println("      return visitor.visit" +
         className + baseName + "(this);");
     writer.println("    }");
@@ -115,7 +135,14 @@ public class GenerateAst {
     // Fields.
     writer.println();
     for (String field : fields) {
-      writer.println("    final " + field + ";");
+      writer.println("    public final " + field + ";");
+    }
+
+    if (resolvedList != null) {
+      writer.println();
+      for (String field : resolvedList.split(", ")) {
+        writer.println("    public " + field + ";");
+      }
     }
 
     writer.println("  }");
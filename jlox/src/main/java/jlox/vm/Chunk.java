@@ -0,0 +1,52 @@
+package jlox.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A function's bytecode, with the source line of every byte for error
+// reporting and the constants its instructions refer to.
+final class Chunk {
+  byte[] code = new byte[8];
+  int[] lines = new int[8];
+  int count = 0;
+  // Filled from constantList when the owning function is finished.
+  Object[] constants;
+
+  private final List<Object> constantList = new ArrayList<>();
+  // Strings and numbers are shared, so a name used many times in a
+  // function takes up one constant slot.
+  private final Map<Object, Integer> constantIndex = new HashMap<>();
+
+  void write(byte value, int line) {
+    if (count == code.length) {
+      code = Arrays.copyOf(code, count * 2);
+      lines = Arrays.copyOf(lines, count * 2);
+    }
+
+    code[count] = value;
+    lines[count] = line;
+    count++;
+  }
+
+  int addConstant(Object value) {
+    boolean shared = value instanceof String || value instanceof Double;
+    if (shared) {
+      Integer index = constantIndex.get(value);
+      if (index != null) return index;
+    }
+
+    constantList.add(value);
+    int index = constantList.size() - 1;
+    if (shared) constantIndex.put(value, index);
+    return index;
+  }
+
+  void finish() {
+    code = Arrays.copyOf(code, count);
+    lines = Arrays.copyOf(lines, count);
+    constants = constantList.toArray();
+  }
+}
@@ -0,0 +1,690 @@
+package jlox.vm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jlox.Expr;
+import jlox.Lox;
+import jlox.Stmt;
+import jlox.Token;
+import jlox.TokenType;
+
+// Compiles resolved statements into bytecode, following clox's single-pass
+// compiler: locals live in stack slots, captured variables become upvalues
+// and classes are built at runtime by CLASS, INHERIT and METHOD. The
+// resolver has already reported scoping errors, so only the VM's own
+// limits are checked here.
+final class Compiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  private static final int MAX_LOCALS = 256;
+  private static final int MAX_UPVALUES = 256;
+  private static final int MAX_CONSTANTS = 65536;
+  private static final int MAX_JUMP = 65535;
+
+  private enum FunctionType {
+    FUNCTION,
+    INITIALIZER,
+    METHOD,
+    SCRIPT
+  }
+
+  private static class Local {
+    final String name;
+    final int depth;
+    boolean isCaptured = false;
+
+    Local(String name, int depth) {
+      this.name = name;
+      this.depth = depth;
+    }
+  }
+
+  private static class Upvalue {
+    final int index;
+    final boolean isLocal;
+
+    Upvalue(int index, boolean isLocal) {
+      this.index = index;
+      this.isLocal = isLocal;
+    }
+  }
+
+  // Per-function compiler state, like the Compiler struct in clox.
+  private static class FunctionState {
+    final FunctionState enclosing;
+    final ObjFunction function;
+    final FunctionType type;
+    final List<Local> locals = new ArrayList<>();
+    final List<Upvalue> upvalues = new ArrayList<>();
+    int scopeDepth = 0;
+    // Stack slots in use at the current instruction.
+    int stackDepth = 1;
+
+    FunctionState(FunctionState enclosing, FunctionType type, String name) {
+      this.enclosing = enclosing;
+      this.type = type;
+      this.function = new ObjFunction(name);
+
+      // Slot zero holds the callee, or the receiver in methods.
+      String slotZero = type == FunctionType.FUNCTION ||
+          type == FunctionType.SCRIPT ? "" : "this";
+      locals.add(new Local(slotZero, 0));
+    }
+  }
+
+  private static class ClassState {
+    final ClassState enclosing;
+    boolean hasSuperclass = false;
+
+    ClassState(ClassState enclosing) {
+      this.enclosing = enclosing;
+    }
+  }
+
+  private FunctionState current = null;
+  private ClassState currentClass = null;
+  private int line = 1;
+  private boolean hadError = false;
+
+  ObjFunction compile(List<Stmt> statements) {
+    current = new FunctionState(null, FunctionType.SCRIPT, null);
+    for (Stmt statement : statements) {
+      compile(statement);
+    }
+
+    ObjFunction function = endFunction();
+    return hadError ? null : function;
+  }
+
+  private void compile(Stmt stmt) {
+    stmt.accept(this);
+  }
+
+  private void compile(Expr expr) {
+    expr.accept(this);
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    beginScope();
+    for (Stmt statement : stmt.statements) {
+      compile(statement);
+    }
+    endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    line = stmt.name.line;
+    int nameConstant = makeConstant(stmt.name.lexeme, stmt.name);
+    emitOp(OpCode.CLASS, 1);
+    emitShort(nameConstant);
+    defineVariable(stmt.name, nameConstant);
+
+    ClassState classState = new ClassState(currentClass);
+    currentClass = classState;
+
+    if (stmt.superclass != null) {
+      compile(stmt.superclass);
+
+      beginScope();
+      addLocal("super", stmt.superclass.name);
+
+      namedVariable(stmt.name.lexeme, stmt.name, 0);
+      line = stmt.superclass.name.line;
+      emitOp(OpCode.INHERIT, -1);
+      classState.hasSuperclass = true;
+    }
+
+    namedVariable(stmt.name.lexeme, stmt.name, 0);
+    for (Stmt.Function method : stmt.methods) {
+      FunctionType type = FunctionType.METHOD;
+      if (method.name.lexeme.equals("init")) {
+        type = FunctionType.INITIALIZER;
+      }
+
+      function(method, type);
+      emitOp(OpCode.METHOD, -1);
+      emitShort(makeConstant(method.name.lexeme, method.name));
+    }
+    emitOp(OpCode.POP, -1);
+
+    if (classState.hasSuperclass) endScope();
+
+    currentClass = currentClass.enclosing;
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    compile(stmt.expression);
+    emitOp(OpCode.POP, -1);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    // A local function is in scope inside its own body, for recursion.
+    if (current.scopeDepth > 0) {
+      addLocal(stmt.name.lexeme, stmt.name);
+      function(stmt, FunctionType.FUNCTION);
+      return null;
+    }
+
+    function(stmt, FunctionType.FUNCTION);
+    defineVariable(stmt.name, makeConstant(stmt.name.lexeme, stmt.name));
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    compile(stmt.condition);
+    int conditionDepth = current.stackDepth;
+
+    int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+    emitOp(OpCode.POP, -1);
+    compile(stmt.thenBranch);
+
+    int elseJump = emitJump(OpCode.JUMP);
+    patchJump(thenJump);
+    current.stackDepth = conditionDepth;
+    emitOp(OpCode.POP, -1);
+
+    if (stmt.elseBranch != null) compile(stmt.elseBranch);
+    patchJump(elseJump);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    compile(stmt.expression);
+    emitOp(OpCode.PRINT, -1);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    line = stmt.keyword.line;
+    if (stmt.value == null) {
+      emitReturn();
+    } else if (stmt.isTailCall) {
+      // The RETURN is only reached when the callee is not a closure;
+      // otherwise TAIL_CALL has already replaced this frame.
+      call((Expr.Call)stmt.value, OpCode.TAIL_CALL);
+      emitOp(OpCode.RETURN, -1);
+    } else {
+      compile(stmt.value);
+      emitOp(OpCode.RETURN, -1);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    line = stmt.name.line;
+    if (stmt.initializer != null) {
+      compile(stmt.initializer);
+    } else {
+      emitOp(OpCode.NIL, 1);
+    }
+
+    if (current.scopeDepth > 0) {
+      addLocal(stmt.name.lexeme, stmt.name);
+    } else {
+      defineVariable(stmt.name, makeConstant(stmt.name.lexeme, stmt.name));
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    int loopStart = current.function.chunk.count;
+    compile(stmt.condition);
+    int conditionDepth = current.stackDepth;
+
+    int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+    emitOp(OpCode.POP, -1);
+    compile(stmt.body);
+    emitLoop(loopStart);
+
+    patchJump(exitJump);
+    current.stackDepth = conditionDepth;
+    emitOp(OpCode.POP, -1);
+    return null;
+  }
+
+  @Override
+  public Void visitForStmt(Stmt.For stmt) {
+    beginScope();
+    if (stmt.initializer != null) compile(stmt.initializer);
+
+    int loopStart = current.function.chunk.count;
+    int exitJump = -1;
+    int conditionDepth = 0;
+    if (stmt.condition != null) {
+      compile(stmt.condition);
+      conditionDepth = current.stackDepth;
+      exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+      emitOp(OpCode.POP, -1);
+    }
+
+    compile(stmt.body);
+    if (stmt.increment != null) {
+      compile(stmt.increment);
+      emitOp(OpCode.POP, -1);
+    }
+    emitLoop(loopStart);
+
+    if (exitJump != -1) {
+      patchJump(exitJump);
+      current.stackDepth = conditionDepth;
+      emitOp(OpCode.POP, -1);
+    }
+    endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    compile(expr.value);
+    line = expr.name.line;
+    setVariable(expr.name, expr.depth);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    compile(expr.left);
+    compile(expr.right);
+    line = expr.operator.line;
+
+    switch (expr.operator.type) {
+      case BANG_EQUAL: emitOp(OpCode.NOT_EQUAL, -1); break;
+      case EQUAL_EQUAL: emitOp(OpCode.EQUAL, -1); break;
+      case GREATER: emitOp(OpCode.GREATER, -1); break;
+      case GREATER_EQUAL: emitOp(OpCode.GREATER_EQUAL, -1); break;
+      case LESS: emitOp(OpCode.LESS, -1); break;
+      case LESS_EQUAL: emitOp(OpCode.LESS_EQUAL, -1); break;
+      case MINUS: emitOp(OpCode.SUBTRACT, -1); break;
+      case PLUS: emitOp(OpCode.ADD, -1); break;
+      case SLASH: emitOp(OpCode.DIVIDE, -1); break;
+      case STAR: emitOp(OpCode.MULTIPLY, -1); break;
+      default:
+        // Unreachable.
+        break;
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    call(expr, OpCode.CALL);
+    return null;
+  }
+
+  private void call(Expr.Call expr, byte op) {
+    compile(expr.callee);
+    for (Expr argument : expr.arguments) {
+      compile(argument);
+    }
+
+    line = expr.paren.line;
+    emitOp(op, -expr.arguments.size());
+    emitByte(expr.arguments.size());
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    compile(expr.object);
+    line = expr.name.line;
+    emitOp(OpCode.GET_PROPERTY, 0);
+    emitShort(makeConstant(expr.name.lexeme, expr.name));
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    compile(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null) {
+      emitOp(OpCode.NIL, 1);
+    } else if (expr.value.equals(true)) {
+      emitOp(OpCode.TRUE, 1);
+    } else if (expr.value.equals(false)) {
+      emitOp(OpCode.FALSE, 1);
+    } else {
+      emitOp(OpCode.CONSTANT, 1);
+      emitShort(makeConstant(expr.value, null));
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    compile(expr.left);
+
+    if (expr.operator.type == TokenType.AND) {
+      int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+      emitOp(OpCode.POP, -1);
+      compile(expr.right);
+      patchJump(endJump);
+    } else {
+      int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+      int endJump = emitJump(OpCode.JUMP);
+      patchJump(elseJump);
+      emitOp(OpCode.POP, -1);
+      compile(expr.right);
+      patchJump(endJump);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    compile(expr.object);
+    compile(expr.value);
+    line = expr.name.line;
+    emitOp(OpCode.SET_PROPERTY, -1);
+    emitShort(makeConstant(expr.name.lexeme, expr.name));
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(Expr.Super expr) {
+    namedVariable("this", expr.keyword, 0);
+    namedVariable("super", expr.keyword, 0);
+    line = expr.method.line;
+    emitOp(OpCode.GET_SUPER, -1);
+    emitShort(makeConstant(expr.method.lexeme, expr.method));
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    namedVariable("this", expr.keyword, expr.depth);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    compile(expr.right);
+    line = expr.operator.line;
+    if (expr.operator.type == TokenType.BANG) {
+      emitOp(OpCode.NOT, 0);
+    } else {
+      emitOp(OpCode.NEGATE, 0);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    namedVariable(expr.name.lexeme, expr.name, expr.depth);
+    return null;
+  }
+
+  private void function(Stmt.Function stmt, FunctionType type) {
+    FunctionState state = new FunctionState(current, type,
+        stmt.name.lexeme);
+    current = state;
+    // Never closed: returning discards the whole frame.
+    beginScope();
+
+    for (Token param : stmt.params) {
+      state.function.arity++;
+      state.stackDepth++;
+      addLocal(param.lexeme, param);
+    }
+
+    for (Stmt statement : stmt.body) {
+      compile(statement);
+    }
+
+    ObjFunction function = endFunction();
+
+    line = stmt.name.line;
+    emitOp(OpCode.CLOSURE, 1);
+    emitShort(makeConstant(function, stmt.name));
+    for (Upvalue upvalue : state.upvalues) {
+      emitByte(upvalue.isLocal ? 1 : 0);
+      emitByte(upvalue.index);
+    }
+  }
+
+  private ObjFunction endFunction() {
+    emitReturn();
+
+    ObjFunction function = current.function;
+    function.upvalueCount = current.upvalues.size();
+    function.chunk.finish();
+    current = current.enclosing;
+    return function;
+  }
+
+  // Variables. The resolver already knows whether a name is global, so a
+  // depth of -1 goes straight to the global opcodes.
+
+  private void namedVariable(String name, Token token, int depth) {
+    line = token.line;
+    if (depth != -1) {
+      int slot = resolveLocal(current, name);
+      if (slot != -1) {
+        emitOp(OpCode.GET_LOCAL, 1);
+        emitByte(slot);
+        return;
+      }
+
+      int index = resolveUpvalue(current, name, token);
+      if (index != -1) {
+        emitOp(OpCode.GET_UPVALUE, 1);
+        emitByte(index);
+        return;
+      }
+    }
+
+    emitOp(OpCode.GET_GLOBAL, 1);
+    emitShort(makeConstant(name, token));
+  }
+
+  private void setVariable(Token name, int depth) {
+    if (depth != -1) {
+      int slot = resolveLocal(current, name.lexeme);
+      if (slot != -1) {
+        emitOp(OpCode.SET_LOCAL, 0);
+        emitByte(slot);
+        return;
+      }
+
+      int index = resolveUpvalue(current, name.lexeme, name);
+      if (index != -1) {
+        emitOp(OpCode.SET_UPVALUE, 0);
+        emitByte(index);
+        return;
+      }
+    }
+
+    emitOp(OpCode.SET_GLOBAL, 0);
+    emitShort(makeConstant(name.lexeme, name));
+  }
+
+  private void defineVariable(Token name, int nameConstant) {
+    if (current.scopeDepth > 0) {
+      addLocal(name.lexeme, name);
+      return;
+    }
+
+    emitOp(OpCode.DEFINE_GLOBAL, -1);
+    emitShort(nameConstant);
+  }
+
+  private int resolveLocal(FunctionState state, String name) {
+    for (int i = state.locals.size() - 1; i >= 0; i--) {
+      if (state.locals.get(i).name.equals(name)) return i;
+    }
+
+    return -1;
+  }
+
+  private int resolveUpvalue(FunctionState state, String name,
+                             Token token) {
+    if (state.enclosing == null) return -1;
+
+    int local = resolveLocal(state.enclosing, name);
+    if (local != -1) {
+      state.enclosing.locals.get(local).isCaptured = true;
+      return addUpvalue(state, local, true, token);
+    }
+
+    int upvalue = resolveUpvalue(state.enclosing, name, token);
+    if (upvalue != -1) {
+      return addUpvalue(state, upvalue, false, token);
+    }
+
+    return -1;
+  }
+
+  private int addUpvalue(FunctionState state, int index, boolean isLocal,
+                         Token name) {
+    for (int i = 0; i < state.upvalues.size(); i++) {
+      Upvalue upvalue = state.upvalues.get(i);
+      if (upvalue.index == index && upvalue.isLocal == isLocal) return i;
+    }
+
+    if (state.upvalues.size() == MAX_UPVALUES) {
+      error(name, "Too many closure variables in function.");
+      return 0;
+    }
+
+    state.upvalues.add(new Upvalue(index, isLocal));
+    return state.upvalues.size() - 1;
+  }
+
+  // Adds a local for the value currently on top of the stack.
+  private void addLocal(String name, Token token) {
+    if (current.locals.size() == MAX_LOCALS) {
+      error(token, "Too many local variables in function.");
+      return;
+    }
+
+    current.locals.add(new Local(name, current.scopeDepth));
+  }
+
+  private void beginScope() {
+    current.scopeDepth++;
+  }
+
+  private void endScope() {
+    current.scopeDepth--;
+
+    List<Local> locals = current.locals;
+    int pops = 0;
+    while (!locals.isEmpty() &&
+           locals.get(locals.size() - 1).depth > current.scopeDepth) {
+      if (locals.get(locals.size() - 1).isCaptured) {
+        emitPops(pops);
+        pops = 0;
+        emitOp(OpCode.CLOSE_UPVALUE, -1);
+      } else {
+        pops++;
+      }
+      locals.remove(locals.size() - 1);
+    }
+
+    emitPops(pops);
+  }
+
+  private void emitPops(int count) {
+    while (count > 0) {
+      if (count == 1) {
+        emitOp(OpCode.POP, -1);
+        return;
+      }
+
+      int n = Math.min(count, 255);
+      emitOp(OpCode.POP_N, -n);
+      emitByte(n);
+      count -= n;
+    }
+  }
+
+  // Code emission.
+
+  private void emitOp(byte op, int stackEffect) {
+    current.function.chunk.write(op, line);
+    current.stackDepth += stackEffect;
+    if (current.stackDepth > current.function.maxStack) {
+      current.function.maxStack = current.stackDepth;
+    }
+  }
+
+  private void emitByte(int value) {
+    current.function.chunk.write((byte)value, line);
+  }
+
+  private void emitShort(int value) {
+    emitByte((value >> 8) & 0xff);
+    emitByte(value & 0xff);
+  }
+
+  private void emitReturn() {
+    if (current.type == FunctionType.INITIALIZER) {
+      emitOp(OpCode.GET_LOCAL, 1);
+      emitByte(0);
+    } else {
+      emitOp(OpCode.NIL, 1);
+    }
+
+    emitOp(OpCode.RETURN, -1);
+  }
+
+  private int emitJump(byte op) {
+    emitOp(op, 0);
+    emitByte(0xff);
+    emitByte(0xff);
+    return current.function.chunk.count - 2;
+  }
+
+  private void patchJump(int offset) {
+    Chunk chunk = current.function.chunk;
+    // -2 to adjust for the bytecode for the jump offset itself.
+    int jump = chunk.count - offset - 2;
+    if (jump > MAX_JUMP) {
+      error(null, "Too much code to jump over.");
+    }
+
+    chunk.code[offset] = (byte)((jump >> 8) & 0xff);
+    chunk.code[offset + 1] = (byte)(jump & 0xff);
+  }
+
+  private void emitLoop(int loopStart) {
+    emitOp(OpCode.LOOP, 0);
+
+    int offset = current.function.chunk.count - loopStart + 2;
+    if (offset > MAX_JUMP) error(null, "Loop body too large.");
+
+    emitShort(offset);
+  }
+
+  private int makeConstant(Object value, Token token) {
+    int constant = current.function.chunk.addConstant(value);
+    if (constant >= MAX_CONSTANTS) {
+      error(token, "Too many constants in one chunk.");
+      return 0;
+    }
+
+    return constant;
+  }
+
+  private void error(Token token, String message) {
+    if (token == null) {
+      Lox.error(line, message);
+    } else {
+      Lox.error(token, message);
+    }
+    hadError = true;
+  }
+}
@@ -0,0 +1,16 @@
+package jlox.vm;
+
+final class ObjBoundMethod {
+  final Object receiver;
+  final ObjClosure method;
+
+  ObjBoundMethod(Object receiver, ObjClosure method) {
+    this.receiver = receiver;
+    this.method = method;
+  }
+
+  @Override
+  public String toString() {
+    return method.toString();
+  }
+}
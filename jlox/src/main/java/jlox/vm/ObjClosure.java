@@ -0,0 +1,16 @@
+package jlox.vm;
+
+final class ObjClosure {
+  final ObjFunction function;
+  final ObjUpvalue[] upvalues;
+
+  ObjClosure(ObjFunction function) {
+    this.function = function;
+    this.upvalues = new ObjUpvalue[function.upvalueCount];
+  }
+
+  @Override
+  public String toString() {
+    return function.toString();
+  }
+}
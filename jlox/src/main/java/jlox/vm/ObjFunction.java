@@ -0,0 +1,20 @@
+package jlox.vm;
+
+final class ObjFunction {
+  final String name;
+  final Chunk chunk = new Chunk();
+  int arity = 0;
+  int upvalueCount = 0;
+  // The most stack slots a call can use, counting slot zero and locals.
+  int maxStack = 1;
+
+  ObjFunction(String name) {
+    this.name = name;
+  }
+
+  @Override
+  public String toString() {
+    if (name == null) return "<script>";
+    return "<fn " + name + ">";
+  }
+}
@@ -0,0 +1,21 @@
+package jlox.vm;
+
+final class ObjNative {
+  interface NativeFn {
+    // The arguments are stack[first] through stack[first + arity - 1].
+    Object call(Object[] stack, int first);
+  }
+
+  final int arity;
+  final NativeFn function;
+
+  ObjNative(int arity, NativeFn function) {
+    this.arity = arity;
+    this.function = function;
+  }
+
+  @Override
+  public String toString() {
+    return "<native fn>";
+  }
+}
@@ -0,0 +1,16 @@
+package jlox.vm;
+
+// A variable captured by a closure. While the variable is still on the
+// stack the upvalue is open and refers to its slot; when the slot is
+// popped the value moves into the upvalue itself.
+final class ObjUpvalue {
+  int location;
+  Object closed;
+  boolean isOpen = true;
+  // The next open upvalue, further down the stack.
+  ObjUpvalue next;
+
+  ObjUpvalue(int location) {
+    this.location = location;
+  }
+}
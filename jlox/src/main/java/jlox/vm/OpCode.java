@@ -0,0 +1,50 @@
+package jlox.vm;
+
+// The instruction set. Opcodes are plain byte constants rather than an
+// enum so that the dispatch loop in VM.run() compiles to a table switch.
+// Operands follow the opcode: "u8" is one byte, "u16" two bytes, big-endian.
+final class OpCode {
+  private OpCode() {}
+
+  static final byte CONSTANT = 0;        // u16 constant index
+  static final byte NIL = 1;
+  static final byte TRUE = 2;
+  static final byte FALSE = 3;
+  static final byte POP = 4;
+  static final byte POP_N = 5;           // u8 count
+  static final byte GET_LOCAL = 6;       // u8 slot
+  static final byte SET_LOCAL = 7;       // u8 slot
+  static final byte GET_GLOBAL = 8;      // u16 name constant
+  static final byte DEFINE_GLOBAL = 9;   // u16 name constant
+  static final byte SET_GLOBAL = 10;     // u16 name constant
+  static final byte GET_UPVALUE = 11;    // u8 index
+  static final byte SET_UPVALUE = 12;    // u8 index
+  static final byte GET_PROPERTY = 13;   // u16 name constant
+  static final byte SET_PROPERTY = 14;   // u16 name constant
+  static final byte GET_SUPER = 15;      // u16 name constant
+  static final byte EQUAL = 16;
+  static final byte NOT_EQUAL = 17;
+  static final byte GREATER = 18;
+  static final byte GREATER_EQUAL = 19;
+  static final byte LESS = 20;
+  static final byte LESS_EQUAL = 21;
+  static final byte ADD = 22;
+  static final byte SUBTRACT = 23;
+  static final byte MULTIPLY = 24;
+  static final byte DIVIDE = 25;
+  static final byte NOT = 26;
+  static final byte NEGATE = 27;
+  static final byte PRINT = 28;
+  static final byte JUMP = 29;           // u16 forward offset
+  static final byte JUMP_IF_FALSE = 30;  // u16 forward offset
+  static final byte LOOP = 31;           // u16 backward offset
+  static final byte CALL = 32;           // u8 argument count
+  static final byte CLOSURE = 33;        // u16 function constant, then
+                                         // (u8 isLocal, u8 index) pairs
+  static final byte CLOSE_UPVALUE = 34;
+  static final byte RETURN = 35;
+  static final byte CLASS = 36;          // u16 name constant
+  static final byte INHERIT = 37;
+  static final byte METHOD = 38;         // u16 name constant
+  static final byte TAIL_CALL = 39;      // u8 argument count
+}
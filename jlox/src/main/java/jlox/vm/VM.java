@@ -0,0 +1,543 @@
+package jlox.vm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jlox.Stmt;
+
+// A stack-based bytecode virtual machine in the style of clox. Values are
+// the same Java objects the tree-walking interpreter uses (null, Boolean,
+// Double and String), so output and error messages match it exactly.
+public class VM {
+  public enum InterpretResult {
+    OK,
+    COMPILE_ERROR,
+    RUNTIME_ERROR
+  }
+
+
+  private static final class CallFrame {
+    ObjClosure closure;
+    int ip;
+    // Stack index of the frame's slot zero.
+    int slots;
+  }
+
+  // Thrown by the instruction helpers and reported by run().
+  private static final class VMError extends RuntimeException {
+    VMError(String message) {
+      super(message, null, false, false);
+    }
+  }
+
+  private CallFrame[] frames = new CallFrame[64];
+  private int frameCount = 0;
+
+  private Object[] stack = new Object[256];
+  private int stackTop = 0;
+
+  // Counting the frame for the top-level code.
+  private final int maxFrames;
+
+  private final Map<String, Object> globals = new HashMap<>();
+  private ObjUpvalue openUpvalues = null;
+
+  // Lox calls can nest maxDepth deep before the VM reports a stack
+  // overflow. Frames live in the frames array, never on the Java stack.
+  public VM(int maxDepth) {
+    this.maxFrames = maxDepth + 1;
+    globals.put("clock", new ObjNative(0, (args, first) ->
+        (double)System.currentTimeMillis() / 1000.0));
+  }
+
+  public InterpretResult interpret(List<Stmt> statements) {
+    ObjFunction function = new Compiler().compile(statements);
+    if (function == null) return InterpretResult.COMPILE_ERROR;
+
+    ObjClosure closure = new ObjClosure(function);
+    push(closure);
+    call(closure, 0);
+    return run();
+  }
+
+  private InterpretResult run() {
+    CallFrame frame = frames[frameCount - 1];
+    byte[] code = frame.closure.function.chunk.code;
+    Object[] constants = frame.closure.function.chunk.constants;
+    int ip = frame.ip;
+    int base = frame.slots;
+
+    try {
+      for (;;) {
+        switch (code[ip++]) {
+          case OpCode.CONSTANT: {
+            push(constants[readShort(code, ip)]);
+            ip += 2;
+            break;
+          }
+          case OpCode.NIL: push(null); break;
+          case OpCode.TRUE: push(true); break;
+          case OpCode.FALSE: push(false); break;
+          case OpCode.POP: stackTop--; break;
+          case OpCode.POP_N: stackTop -= code[ip++] & 0xff; break;
+          case OpCode.GET_LOCAL: {
+            push(stack[base + (code[ip++] & 0xff)]);
+            break;
+          }
+          case OpCode.SET_LOCAL: {
+            stack[base + (code[ip++] & 0xff)] = peek(0);
+            break;
+          }
+          case OpCode.GET_GLOBAL: {
+            String name = (String)constants[readShort(code, ip)];
+            ip += 2;
+            Object value = globals.get(name);
+            if (value == null && !globals.containsKey(name)) {
+              throw new VMError("Undefined variable '" + name + "'.");
+            }
+            push(value);
+            break;
+          }
+          case OpCode.DEFINE_GLOBAL: {
+            String name = (String)constants[readShort(code, ip)];
+            ip += 2;
+            globals.put(name, pop());
+            break;
+          }
+          case OpCode.SET_GLOBAL: {
+            String name = (String)constants[readShort(code, ip)];
+            ip += 2;
+            if (!globals.containsKey(name)) {
+              throw new VMError("Undefined variable '" + name + "'.");
+            }
+            globals.put(name, peek(0));
+            break;
+          }
+          case OpCode.GET_UPVALUE: {
+            ObjUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+            push(upvalue.isOpen ? stack[upvalue.location] : upvalue.closed);
+            break;
+          }
+          case OpCode.SET_UPVALUE: {
+            ObjUpvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+            if (upvalue.isOpen) {
+              stack[upvalue.location] = peek(0);
+            } else {
+              upvalue.closed = peek(0);
+            }
+            break;
+          }
+          case OpCode.GET_PROPERTY: {
+            String name = (String)constants[readShort(code, ip)];
+            ip += 2;
+            if (!(peek(0) instanceof ObjInstance)) {
+              throw new VMError("Only instances have properties.");
+            }
+
+            ObjInstance instance = (ObjInstance)peek(0);
+            Object value = instance.fields.get(name);
+            if (value != null || instance.fields.containsKey(name)) {
+              stack[stackTop - 1] = value;
+              break;
+            }
+
+            bindMethod(instance.klass, name);
+            break;
+          }
+          case OpCode.SET_PROPERTY: {
+            String name = (String)constants[readShort(code, ip)];
+            ip += 2;
+            if (!(peek(1) instanceof ObjInstance)) {
+              throw new VMError("Only instances have fields.");
+            }
+
+            Object value = pop();
+            ((ObjInstance)pop()).fields.put(name, value);
+            push(value);
+            break;
+          }
+          case OpCode.GET_SUPER: {
+            String name = (String)constants[readShort(code, ip)];
+            ip += 2;
+            ObjClass superclass = (ObjClass)pop();
+            bindMethod(superclass, name);
+            break;
+          }
+          case OpCode.EQUAL: {
+            Object b = pop();
+            stack[stackTop - 1] = isEqual(peek(0), b);
+            break;
+          }
+          case OpCode.NOT_EQUAL: {
+            Object b = pop();
+            stack[stackTop - 1] = !isEqual(peek(0), b);
+            break;
+          }
+          case OpCode.GREATER: {
+            checkNumberOperands();
+            double b = (double)pop();
+            stack[stackTop - 1] = (double)peek(0) > b;
+            break;
+          }
+          case OpCode.GREATER_EQUAL: {
+            checkNumberOperands();
+            double b = (double)pop();
+            stack[stackTop - 1] = (double)peek(0) >= b;
+            break;
+          }
+          case OpCode.LESS: {
+            checkNumberOperands();
+            double b = (double)pop();
+            stack[stackTop - 1] = (double)peek(0) < b;
+            break;
+          }
+          case OpCode.LESS_EQUAL: {
+            checkNumberOperands();
+            double b = (double)pop();
+            stack[stackTop - 1] = (double)peek(0) <= b;
+            break;
+          }
+          case OpCode.ADD: {
+            Object b = peek(0);
+            Object a = peek(1);
+            if (a instanceof Double && b instanceof Double) {
+              stackTop--;
+              stack[stackTop - 1] = (double)a + (double)b;
+            } else if (a instanceof String && b instanceof String) {
+              stackTop--;
+              stack[stackTop - 1] = (String)a + (String)b;
+            } else {
+              throw new VMError(
+                  "Operands must be two numbers or two strings.");
+            }
+            break;
+          }
+          case OpCode.SUBTRACT: {
+            checkNumberOperands();
+            double b = (double)pop();
+            stack[stackTop - 1] = (double)peek(0) - b;
+            break;
+          }
+          case OpCode.MULTIPLY: {
+            checkNumberOperands();
+            double b = (double)pop();
+            stack[stackTop - 1] = (double)peek(0) * b;
+            break;
+          }
+          case OpCode.DIVIDE: {
+            checkNumberOperands();
+            double b = (double)pop();
+            stack[stackTop - 1] = (double)peek(0) / b;
+            break;
+          }
+          case OpCode.NOT:
+            stack[stackTop - 1] = isFalsey(peek(0));
+            break;
+          case OpCode.NEGATE: {
+            if (!(peek(0) instanceof Double)) {
+              throw new VMError("Operand must be a number.");
+            }
+            stack[stackTop - 1] = -(double)peek(0);
+            break;
+          }
+          case OpCode.PRINT:
+            System.out.println(stringify(pop()));
+            break;
+          case OpCode.JUMP: {
+            int offset = readShort(code, ip);
+            ip += 2 + offset;
+            break;
+          }
+          case OpCode.JUMP_IF_FALSE: {
+            int offset = readShort(code, ip);
+            ip += 2;
+            if (isFalsey(peek(0))) ip += offset;
+            break;
+          }
+          case OpCode.LOOP: {
+            int offset = readShort(code, ip);
+            ip += 2 - offset;
+            break;
+          }
+          case OpCode.CALL: {
+            int argCount = code[ip++] & 0xff;
+            frame.ip = ip;
+            if (callValue(peek(argCount), argCount)) {
+              frame = frames[frameCount - 1];
+              code = frame.closure.function.chunk.code;
+              constants = frame.closure.function.chunk.constants;
+              ip = frame.ip;
+              base = frame.slots;
+            }
+            break;
+          }
+          case OpCode.TAIL_CALL: {
+            int argCount = code[ip++] & 0xff;
+            Object callee = peek(argCount);
+            if (callee instanceof ObjClosure ||
+                callee instanceof ObjBoundMethod) {
+              // Drop this frame and slide the callee and its arguments
+              // down into its slots, so the call takes its place.
+              closeUpvalues(base);
+              System.arraycopy(stack, stackTop - argCount - 1,
+                               stack, base, argCount + 1);
+              stackTop = base + argCount + 1;
+              frameCount--;
+            }
+
+            frame.ip = ip;
+            if (callValue(callee, argCount)) {
+              frame = frames[frameCount - 1];
+              code = frame.closure.function.chunk.code;
+              constants = frame.closure.function.chunk.constants;
+              ip = frame.ip;
+              base = frame.slots;
+            }
+            break;
+          }
+          case OpCode.CLOSURE: {
+            ObjFunction function =
+                (ObjFunction)constants[readShort(code, ip)];
+            ip += 2;
+            ObjClosure closure = new ObjClosure(function);
+            push(closure);
+            for (int i = 0; i < closure.upvalues.length; i++) {
+              boolean isLocal = code[ip++] != 0;
+              int index = code[ip++] & 0xff;
+              if (isLocal) {
+                closure.upvalues[i] = captureUpvalue(base + index);
+              } else {
+                closure.upvalues[i] = frame.closure.upvalues[index];
+              }
+            }
+            break;
+          }
+          case OpCode.CLOSE_UPVALUE:
+            closeUpvalues(stackTop - 1);
+            stackTop--;
+            break;
+          case OpCode.RETURN: {
+            Object result = pop();
+            closeUpvalues(base);
+            frameCount--;
+            if (frameCount == 0) {
+              stackTop = 0;
+              return InterpretResult.OK;
+            }
+
+            stackTop = base;
+            push(result);
+            frame = frames[frameCount - 1];
+            code = frame.closure.function.chunk.code;
+            constants = frame.closure.function.chunk.constants;
+            ip = frame.ip;
+            base = frame.slots;
+            break;
+          }
+          case OpCode.CLASS: {
+            push(new ObjClass((String)constants[readShort(code, ip)]));
+            ip += 2;
+            break;
+          }
+          case OpCode.INHERIT: {
+            if (!(peek(1) instanceof ObjClass)) {
+              throw new VMError("Superclass must be a class.");
+            }
+
+            ObjClass subclass = (ObjClass)peek(0);
+            subclass.methods.putAll(((ObjClass)peek(1)).methods);
+            stackTop--;
+            break;
+          }
+          case OpCode.METHOD: {
+            String name = (String)constants[readShort(code, ip)];
+            ip += 2;
+            ObjClass klass = (ObjClass)peek(1);
+            klass.methods.put(name, (ObjClosure)pop());
+            break;
+          }
+          default:
+            throw new IllegalStateException(
+                "Unknown opcode " + code[ip - 1] + ".");
+        }
+      }
+    } catch (VMError error) {
+      int line = frame.closure.function.chunk.lines[ip - 1];
+      System.err.println(error.getMessage() + "\n[line " + line + "]");
+      resetStack();
+      return InterpretResult.RUNTIME_ERROR;
+    }
+  }
+
+  private static int readShort(byte[] code, int ip) {
+    return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+  }
+
+  private void push(Object value) {
+    stack[stackTop++] = value;
+  }
+
+  private Object pop() {
+    return stack[--stackTop];
+  }
+
+  private Object peek(int distance) {
+    return stack[stackTop - 1 - distance];
+  }
+
+  private void resetStack() {
+    Arrays.fill(stack, 0, stackTop, null);
+    stackTop = 0;
+    frameCount = 0;
+    openUpvalues = null;
+  }
+
+  // Returns true if a new call frame was pushed.
+  private boolean callValue(Object callee, int argCount) {
+    if (callee instanceof ObjClosure) {
+      call((ObjClosure)callee, argCount);
+      return true;
+    }
+
+    if (callee instanceof ObjBoundMethod) {
+      ObjBoundMethod bound = (ObjBoundMethod)callee;
+      stack[stackTop - argCount - 1] = bound.receiver;
+      call(bound.method, argCount);
+      return true;
+    }
+
+    if (callee instanceof ObjClass) {
+      ObjClass klass = (ObjClass)callee;
+      stack[stackTop - argCount - 1] = new ObjInstance(klass);
+      ObjClosure initializer = klass.methods.get("init");
+      if (initializer != null) {
+        call(initializer, argCount);
+        return true;
+      }
+
+      checkArity(0, argCount);
+      return false;
+    }
+
+    if (callee instanceof ObjNative) {
+      ObjNative function = (ObjNative)callee;
+      checkArity(function.arity, argCount);
+      Object result = function.function.call(stack, stackTop - argCount);
+      stackTop -= argCount + 1;
+      push(result);
+      return false;
+    }
+
+    throw new VMError("Can only call functions and classes.");
+  }
+
+  private void call(ObjClosure closure, int argCount) {
+    ObjFunction function = closure.function;
+    checkArity(function.arity, argCount);
+
+    if (frameCount == maxFrames) {
+      throw new VMError("Stack overflow.");
+    }
+
+    if (frameCount == frames.length) {
+      frames = Arrays.copyOf(frames, frameCount * 2);
+    }
+
+    int slots = stackTop - argCount - 1;
+    if (slots + function.maxStack > stack.length) {
+      stack = Arrays.copyOf(stack,
+          Math.max(stack.length * 2, slots + function.maxStack));
+    }
+
+    CallFrame frame = frames[frameCount];
+    if (frame == null) {
+      frame = new CallFrame();
+      frames[frameCount] = frame;
+    }
+    frameCount++;
+
+    frame.closure = closure;
+    frame.ip = 0;
+    frame.slots = slots;
+  }
+
+  private void checkArity(int arity, int argCount) {
+    if (argCount != arity) {
+      throw new VMError("Expected " + arity +
+          " arguments but got " + argCount + ".");
+    }
+  }
+
+  // Replaces the instance on top of the stack with the named method bound
+  // to it.
+  private void bindMethod(ObjClass klass, String name) {
+    ObjClosure method = klass.methods.get(name);
+    if (method == null) {
+      throw new VMError("Undefined property '" + name + "'.");
+    }
+
+    stack[stackTop - 1] = new ObjBoundMethod(peek(0), method);
+  }
+
+  private ObjUpvalue captureUpvalue(int location) {
+    ObjUpvalue previous = null;
+    ObjUpvalue upvalue = openUpvalues;
+    while (upvalue != null && upvalue.location > location) {
+      previous = upvalue;
+      upvalue = upvalue.next;
+    }
+
+    if (upvalue != null && upvalue.location == location) return upvalue;
+
+    ObjUpvalue created = new ObjUpvalue(location);
+    created.next = upvalue;
+    if (previous == null) {
+      openUpvalues = created;
+    } else {
+      previous.next = created;
+    }
+
+    return created;
+  }
+
+  private void closeUpvalues(int last) {
+    while (openUpvalues != null && openUpvalues.location >= last) {
+      ObjUpvalue upvalue = openUpvalues;
+      upvalue.closed = stack[upvalue.location];
+      upvalue.isOpen = false;
+      openUpvalues = upvalue.next;
+    }
+  }
+
+  private void checkNumberOperands() {
+    if (peek(0) instanceof Double && peek(1) instanceof Double) return;
+    throw new VMError("Operands must be numbers.");
+  }
+
+  private static boolean isFalsey(Object value) {
+    return value == null || (value instanceof Boolean && !(boolean)value);
+  }
+
+  private static boolean isEqual(Object a, Object b) {
+    if (a == null && b == null) return true;
+    if (a == null) return false;
+
+    return a.equals(b);
+  }
+
+  private static String stringify(Object object) {
+    if (object == null) return "nil";
+
+    if (object instanceof Double) {
+      String text = object.toString();
+      if (text.endsWith(".0")) {
+        text = text.substring(0, text.length() - 2);
+      }
+      return text;
+    }
+
+    return object.toString();
+  }
+}